@@ -0,0 +1,22 @@
+plugins {
+    alias(libs.plugins.jmh)
+}
+
+dependencies {
+    jmhImplementation(project(":core"))
+    jmhImplementation(libs.h2)
+}
+
+// Run all benchmarks using `./gradlew :benchmarks:jmh`, or a subset using e.g. `./gradlew :benchmarks:jmh -Pincludes=Jdbc`.
+// The results (including the allocation rates from the gc profiler) are written to build/results/jmh/results.json.
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    providers.gradleProperty("includes").orNull?.let { includes.add(it) }
+}
+
+// The benchmarks are only run locally and never published
+tasks.withType<AbstractPublishToMaven>().configureEach {
+    enabled = false
+}
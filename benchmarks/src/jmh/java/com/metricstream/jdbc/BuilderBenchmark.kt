@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Benchmarks for building SQLBuilder objects without executing them.  The interpolation modes are measured through
+ * their public entry points: `applyBindings` (APPLY_BINDINGS), `toSQL` (EXPAND_AND_SQL) and `toString`
+ * (EXPAND_AND_STRING).  EXPAND_AND_APPLY is part of every query in JdbcBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class BuilderBenchmark {
+    private val departments = listOf("Sales", "Marketing", "Engineering", "Support", "Finance")
+    private val columns = listOf("id", "name", "department", "salary", "manager_id")
+    private val params = object : QueryParams {
+        private val values = mapOf("1" to "Sales", "2" to departments, "3" to 1000)
+
+        override fun getParameterValue(name: String): Any? = values[name]
+
+        override fun getParameterValue(name: String, isMulti: Boolean): Any? = values[name]
+
+        override fun getParameterValue(name: String, isMulti: Boolean, dateAsString: Boolean): Any? = values[name]
+
+        override fun dateAsStringNeeded(subStr: String): Boolean = false
+
+        override val dateParameterAsString: String = "yyyy-MM-dd"
+
+        override val paramNames: List<String> = listOf("1", "2", "3")
+    }
+    private val template = SQLBuilder("select \${columns} from employees where department in (?) and salary > ?")
+        .bind("columns", columns)
+        .compile()
+
+    @Benchmark
+    fun construct(): SQLBuilder {
+        return SQLBuilder("select name from employees where department = ? and salary > ?", "Sales", 1000)
+    }
+
+    @Benchmark
+    fun appendAndWrap(): SQLBuilder {
+        return SQLBuilder("select name, salary from employees where 1=1")
+            .append("and department = ?", "Sales")
+            .append("and salary > ?", 1000)
+            .append("and manager_id is not null")
+            .wrap("select count(*) from (", ")")
+    }
+
+    @Benchmark
+    fun bindAndApply(): SQLBuilder {
+        return SQLBuilder("select \${columns} from \${table} where \${key} = ?", 42)
+            .bind("columns", columns)
+            .bind("table", "employees")
+            .bind("key", "id")
+            .applyBindings()
+    }
+
+    @Benchmark
+    fun toSQL(): String {
+        return SQLBuilder("select name from employees where department in (?) and salary > ? and name <> '?'", departments, 1000)
+            .toSQL()
+    }
+
+    @Benchmark
+    fun toStringPlain(): String {
+        return SQLBuilder("select name from employees where department in (?) and salary > ?", departments, 1000).toString()
+    }
+
+    @Benchmark
+    fun toStringMasked(): String {
+        return SQLBuilder(
+            "select name from employees where email = ? and ssn = ?",
+            SQLBuilder.mask("alice@example.com"),
+            SQLBuilder.mask("123-45-6789")
+        ).toString()
+    }
+
+    @Benchmark
+    fun nameQuote(): String {
+        return SQLBuilder.nameQuote("\"Employee Name\"", false)
+    }
+
+    @Benchmark
+    fun fromNumberedParameters(): SQLBuilder {
+        return SQLBuilder.fromNumberedParameters(
+            "select name from employees where department = :1 or department in (:2) and salary > :3 and name <> ':1'",
+            params
+        )
+    }
+
+    @Benchmark
+    fun templateToSQL(): String {
+        return template.builder(departments, 1000).toSQL()
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.Connection
+import java.sql.DriverManager
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Benchmarks for the JDBC provider against an in-memory H2 database.  The database work is small on purpose, so
+ * that the overhead of SQLBuilder (expansion, binding, row mapping and result collection) is a visible part of the
+ * measured time and allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class JdbcBenchmark {
+    @Param("10", "1000")
+    @JvmField
+    var rows: Int = 0
+
+    @Param("0", "64")
+    @JvmField
+    var statementCacheSize: Int = 0
+
+    private lateinit var connection: Connection
+
+    @Setup(Level.Trial)
+    fun setup() {
+        connection = DriverManager.getConnection("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1")
+        SQLBuilder("drop table if exists employees").execute(connection)
+        SQLBuilder("create table employees (id bigint primary key, name varchar(100), department varchar(100), salary int)")
+            .execute(connection)
+        val insert = SQLBuilder(
+            "insert into employees (id, name, department, salary) values (?, ?, ?, ?)",
+            SQLBuilder.batchItem("id"),
+            SQLBuilder.batchItem("name"),
+            SQLBuilder.batchItem("department"),
+            SQLBuilder.batchItem("salary")
+        )
+        for (id in 1..rows) {
+            insert.set("id", id.toLong())
+                .set("name", "Employee $id")
+                .set("department", DEPARTMENTS[id % DEPARTMENTS.size])
+                .set("salary", 1000 + id % 5000)
+                .addBatch(connection)
+        }
+        insert.executeBatch(connection)
+        StatementCache.maxSize = statementCacheSize
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        StatementCache.release(connection)
+        StatementCache.maxSize = 0
+        connection.close()
+    }
+
+    @Benchmark
+    fun getInt(): Int {
+        return SQLBuilder("select count(*) from employees where department in (?)", DEPARTMENTS).getInt(connection, 1, -1)
+    }
+
+    @Benchmark
+    fun getList(): List<String> {
+        return SQLBuilder("select name from employees where salary > ?", 0).getList(connection) { rs -> rs.getString(1) }
+    }
+
+    @Benchmark
+    fun getMap(): Map<Long, String?> {
+        return SQLBuilder("select id, name from employees")
+            .getMap(connection) { rs -> SQLBuilder.entry(rs.getLong(1), rs.getString(2)) }
+    }
+
+    @Benchmark
+    fun getLongArray(): LongArray {
+        return SQLBuilder("select id from employees").getLongArray(connection, 1)
+    }
+
+    @Benchmark
+    fun getResultSet(blackhole: Blackhole) {
+        SQLBuilder("select id, name, department, salary from employees").getResultSet(connection).use { rs ->
+            while (rs.next()) {
+                blackhole.consume(rs.getLong(1))
+                blackhole.consume(rs.getString(2))
+                blackhole.consume(rs.getString(3))
+                blackhole.consume(rs.getInt(4))
+            }
+        }
+    }
+
+    @Benchmark
+    fun fold(): Long {
+        return SQLBuilder("select salary from employees").fold(connection, 0L) { sum, rs -> sum + rs.getInt(1) }
+    }
+
+    companion object {
+        private val DEPARTMENTS = listOf("Sales", "Marketing", "Engineering", "Support", "Finance")
+    }
+}
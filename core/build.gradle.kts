@@ -4,6 +4,8 @@ dependencies {
     implementation(libs.logback.classic)
     implementation(libs.commons.codec)
     implementation(libs.kotlin.logging.jvm)
+    compileOnly(libs.kotlinx.coroutines.core)
+    compileOnly(libs.postgresql)
 
     testImplementation(libs.junit.jupiter.api)
     testRuntimeOnly(libs.junit.jupiter.engine)
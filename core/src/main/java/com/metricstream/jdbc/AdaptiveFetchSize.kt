@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.SQLException
+import java.sql.Statement
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Opt-in adaptive fetch size for queries without an explicit fetch size
+ *
+ * When enabled (i.e. `maxBytes` is greater than 0), the JDBC provider remembers the number of rows and columns returned
+ * per QueryFingerprint and uses them to choose the fetch size of the next execution: large enough to read the expected
+ * rows in a single round trip, but limited by `maxFetchSize` and by `maxBytes` divided by the estimated row width
+ * (i.e. the number of columns times `bytesPerColumn`).  The adaptive fetch size never goes below `minFetchSize` or the
+ * default fetch size of the driver, so small results keep using the driver default.  Queries which were not seen
+ * before, and SQLBuilder objects with a fetch size set using `withFetchSize`, keep using that fetch size or the driver
+ * default.
+ *
+ * The row counts are learned from the methods which read the complete ResultSet (e.g. `getList` or `getMap`).  Results
+ * handed to the caller (i.e. `getResultSet` and `stream`) use the learned fetch size but do not update it.
+ */
+object AdaptiveFetchSize {
+    // The smoothed row count and the column count of a query
+    private class Stats(val rows: Long, val columns: Int)
+
+    private const val MAX_QUERIES = 4096
+    const val DEFAULT_MAX_FETCH_SIZE = 5000
+    const val DEFAULT_BYTES_PER_COLUMN = 32
+
+    private val stats = ConcurrentHashMap<QueryFingerprint, Stats>()
+
+    // The default fetch size per statement class, i.e. per driver
+    private val driverDefaults = ConcurrentHashMap<Class<*>, Int>()
+
+    @Volatile
+    private var bytes = 0L
+
+    @Volatile
+    private var fetchSizeLimit = DEFAULT_MAX_FETCH_SIZE
+
+    @Volatile
+    private var fetchSizeFloor = 0
+
+    @Volatile
+    private var columnBytes = DEFAULT_BYTES_PER_COLUMN
+
+    /**
+     * The maximal estimated size in bytes of the rows read in one round trip.  A value of 0 (the default) disables
+     * the adaptive fetch size and forgets all observed queries.
+     */
+    @JvmStatic
+    var maxBytes: Long
+        get() = bytes
+        set(value) {
+            require(value >= 0) { "The maximal fetch size in bytes must not be negative" }
+            bytes = value
+            if (value == 0L) {
+                stats.clear()
+            }
+        }
+
+    /**
+     * The maximal adaptive fetch size
+     */
+    @JvmStatic
+    var maxFetchSize: Int
+        get() = fetchSizeLimit
+        set(value) {
+            require(value > 0) { "The maximal fetch size must be positive" }
+            fetchSizeLimit = value
+        }
+
+    /**
+     * The minimal adaptive fetch size.  The default fetch size of the driver is always used as a lower bound, so the
+     * default of 0 only relies on that.
+     */
+    @JvmStatic
+    var minFetchSize: Int
+        get() = fetchSizeFloor
+        set(value) {
+            require(value >= 0) { "The minimal fetch size must not be negative" }
+            fetchSizeFloor = value
+        }
+
+    /**
+     * The estimated average size of a column value in bytes
+     */
+    @JvmStatic
+    var bytesPerColumn: Int
+        get() = columnBytes
+        set(value) {
+            require(value > 0) { "The bytes per column must be positive" }
+            columnBytes = value
+        }
+
+    internal val enabled: Boolean
+        get() = bytes > 0
+
+    /**
+     * Returns the fetch size for a statement, or 0 if the statement was not seen before or if the driver default is
+     * at least as large.
+     * @param sql The SQL statement
+     * @param driverDefault The default fetch size of the driver, see `driverDefault`
+     */
+    internal fun fetchSize(sql: String, driverDefault: Int): Int {
+        val seen = stats[QueryFingerprint.of(sql)] ?: return 0
+        val rowBytes = maxOf(1, seen.columns) * columnBytes.toLong()
+        // + 1 lets the driver detect the end of the result without another round trip
+        val size = maxOf(minOf(seen.rows + 1, fetchSizeLimit.toLong(), bytes / rowBytes), fetchSizeFloor.toLong())
+        return if (size <= driverDefault) 0 else size.toInt()
+    }
+
+    /**
+     * Returns the default fetch size of the driver of a statement.  The default is read from statements which were
+     * just created and remembered for statements which are reused (and might still have the fetch size of their
+     * previous usage).
+     */
+    @Throws(SQLException::class)
+    internal fun driverDefault(ps: Statement, reused: Boolean): Int {
+        return if (reused) {
+            driverDefaults[ps.javaClass] ?: 0
+        } else {
+            ps.fetchSize.also { driverDefaults.putIfAbsent(ps.javaClass, it) }
+        }
+    }
+
+    /**
+     * Records the number of rows and columns read by a statement.
+     */
+    internal fun record(sql: String, rows: Long, columns: Int) {
+        if (stats.size >= MAX_QUERIES) {
+            stats.clear()
+        }
+        // Growing results are adopted immediately while shrinking results only slowly reduce the fetch size
+        stats.merge(QueryFingerprint.of(sql), Stats(rows, columns)) { old, new ->
+            Stats(maxOf(new.rows, (old.rows * 3 + new.rows) / 4), new.columns)
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.Connection
+import java.sql.SQLException
+
+/**
+ * Implementation of `SQLBuilder.bulkInsert`
+ *
+ * PostgreSQL connections use the COPY API of the driver, Oracle connections (which do not support multi-row VALUES
+ * lists before 23ai) use a JDBC batch, and all other connections use INSERT statements with multi-row VALUES lists.
+ * The drivers are detected using `Connection.isWrapperFor`, so that neither driver is required at runtime.
+ */
+internal object BulkInsert {
+    // Stay below the bind parameter limits of all drivers (e.g. 2100 for SQL Server)
+    private const val MAX_PARAMETERS = 2000
+
+    // SQL Server allows at most 1000 rows per VALUES list
+    private const val MAX_ROWS = 1000
+
+    private val postgresConnection: Class<*>? by lazy { load("org.postgresql.PGConnection") }
+    private val oracleConnection: Class<*>? by lazy { load("oracle.jdbc.OracleConnection") }
+
+    @Throws(SQLException::class)
+    fun insert(connection: Connection, table: String, columns: List<String>, rows: Iterator<List<Any?>>): Long {
+        require(columns.isNotEmpty()) { "At least one column is required" }
+        val target = SQLBuilder.nameQuote(table) + columns.joinToString(", ", " (", ")") { SQLBuilder.nameQuote(it) }
+        return when {
+            isA(connection, postgresConnection) -> {
+                PostgresCopy.copy(connection, "copy $target from stdin (format csv)", columns.size, rows).also {
+                    ResultCache.written("insert into $target")
+                }
+            }
+            isA(connection, oracleConnection) -> batch(connection, "insert into $target values ", columns.size, rows)
+            else -> values(connection, "insert into $target values ", columns.size, rows)
+        }
+    }
+
+    fun checkRow(row: List<Any?>, columns: Int): List<Any?> {
+        require(row.size == columns) { "Every row must have $columns values" }
+        return row
+    }
+
+    private fun values(connection: Connection, prefix: String, columns: Int, rows: Iterator<List<Any?>>): Long {
+        val chunk = (MAX_PARAMETERS / columns).coerceIn(1, MAX_ROWS)
+        // The statement for full chunks is the same for all chunks and thus only generated once
+        val full by lazy { statement(prefix, columns, chunk) }
+        val args = ArrayList<Any?>(chunk * columns)
+        var count = 0L
+        while (rows.hasNext()) {
+            args.clear()
+            var size = 0
+            while (size < chunk && rows.hasNext()) {
+                val row = checkRow(rows.next(), columns)
+                require(row.none { it is Collection<*> }) { "Values must not be collections" }
+                args.addAll(row)
+                size++
+            }
+            SQLBuilder(if (size == chunk) full else statement(prefix, columns, size), *args.toTypedArray()).execute(connection)
+            count += size
+        }
+        return count
+    }
+
+    private fun batch(connection: Connection, prefix: String, columns: Int, rows: Iterator<List<Any?>>): Long {
+        val sb = SQLBuilder(statement(prefix, columns, 1), *Array(columns) { SQLBuilder.batchItem("c$it") })
+        // The rows are counted here, so the update counts of the single rows are not collected
+        sb.batchCounts = false
+        var count = 0L
+        rows.forEach { row ->
+            checkRow(row, columns).forEachIndexed { index, value -> sb.set("c$index", value) }
+            sb.addBatch(connection)
+            count++
+        }
+        sb.executeLargeBatch(connection)
+        return count
+    }
+
+    private fun statement(prefix: String, columns: Int, rows: Int): String {
+        val row = List(columns) { "?" }.joinToString(", ", "(", ")")
+        return List(rows) { row }.joinToString(", ", prefix)
+    }
+
+    private fun isA(connection: Connection, type: Class<*>?): Boolean {
+        return type != null && connection.isWrapperFor(type)
+    }
+
+    private fun load(name: String): Class<*>? {
+        return try {
+            Class.forName(name)
+        } catch (e: ClassNotFoundException) {
+            null
+        }
+    }
+}
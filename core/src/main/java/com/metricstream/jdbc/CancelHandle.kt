@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.SQLException
+import java.sql.Statement
+import java.util.concurrent.Future
+import io.github.oshai.kotlinlogging.KotlinLogging
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Cancels the statement executed for a SQLBuilder from another thread
+ *
+ * The JDBC provider attaches every statement to the handle of its SQLBuilder before executing it.  Cancelling the
+ * handle calls `Statement.cancel()` on the attached statement, and makes all later executions fail before they reach
+ * the database.  A handle can be shared by several SQLBuilder objects (e.g. all queries of a report) but should only be
+ * used by one thread at a time.  The asynchronous methods and QueryGroup use a handle per call instead, which is bound
+ * to the thread executing the call and takes precedence over the handle of the SQLBuilder.
+ * <pre>`CancelHandle handle = new CancelHandle();
+ * reports.put(reportId, handle);
+ * List<Row> rows = new SQLBuilder("select ...").withCancelHandle(handle).getList(connection, Row::new);
+ * `</pre>
+ */
+class CancelHandle {
+    @Volatile
+    private var statement: Statement? = null
+
+    // The result of another execution the current execution waits for (see SingleFlight)
+    @Volatile
+    private var waiting: Future<*>? = null
+
+    @Volatile
+    var isCancelled = false
+        private set
+
+    /**
+     * Cancels the running statement (if any) and all later executions.
+     */
+    fun cancel() {
+        isCancelled = true
+        statement?.let { cancel(it) }
+        waiting?.cancel(false)
+    }
+
+    /**
+     * Attaches a statement which is about to be executed.
+     * @return the statement attached before, which must be passed to `detach`
+     */
+    @Throws(SQLException::class)
+    internal fun attach(statement: Statement): Statement? {
+        if (isCancelled) {
+            throw cancelled()
+        }
+        val previous = this.statement
+        this.statement = statement
+        // cancel could have been called between the check and the assignment
+        if (isCancelled) {
+            cancel(statement)
+        }
+        return previous
+    }
+
+    /**
+     * Detaches the statement attached last.  previous is attached again, e.g. for a query executed by the row mapper
+     * of another query.
+     */
+    internal fun detach(previous: Statement?) {
+        statement = previous
+    }
+
+    /**
+     * Attaches the result of another execution which the current execution waits for instead of executing a statement.
+     * Cancelling the handle cancels future, which must therefore not be shared with other executions.
+     */
+    @Throws(SQLException::class)
+    internal fun attach(future: Future<*>) {
+        if (isCancelled) {
+            throw cancelled()
+        }
+        waiting = future
+        if (isCancelled) {
+            future.cancel(false)
+        }
+    }
+
+    internal fun detach(future: Future<*>) {
+        if (waiting === future) {
+            waiting = null
+        }
+    }
+
+    /**
+     * Runs block with this handle bound to the current thread.
+     */
+    internal inline fun <T> bind(block: () -> T): T {
+        val previous = bound.get()
+        bound.set(this)
+        try {
+            return block()
+        } finally {
+            if (previous == null) bound.remove() else bound.set(previous)
+        }
+    }
+
+    private fun cancel(statement: Statement) {
+        try {
+            statement.cancel()
+        } catch (e: SQLException) {
+            // e.g. the statement was closed in the meantime
+            logger.debug(e) { "Can't cancel statement" }
+        }
+    }
+
+    companion object {
+        /**
+         * The SQLSTATE (class 57, operator intervention) of the SQLException thrown for executions after `cancel`
+         */
+        const val QUERY_CANCELED = "57014"
+
+        internal fun cancelled() = SQLException("The statement was cancelled", QUERY_CANCELED)
+
+        // The handle of the asynchronous call or QueryGroup query executed by the current thread
+        internal val bound = ThreadLocal<CancelHandle?>()
+
+        /**
+         * Returns the handle for the statements of sqlBuilder executed by the current thread, or null.
+         */
+        internal fun of(sqlBuilder: SQLBuilder): CancelHandle? = bound.get() ?: sqlBuilder.cancelHandle
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.math.BigDecimal
+import java.sql.Connection
+import java.sql.Date
+import java.sql.PreparedStatement
+import java.sql.SQLException
+import java.sql.Statement
+import java.sql.Timestamp
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import io.github.oshai.kotlinlogging.KotlinLogging
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Collection argument which is bound as a single SQL array (see `SQLBuilder.CollectionBinding`).  The elements keep
+ * their `SQLBuilder.Masked` wrappers, so that `toString` (and therefore the logged arguments) still masks them.
+ */
+internal data class CollectionParameter(val typeName: String, val elements: List<Any?>, val oracle: Boolean) {
+    /**
+     * Binds the array to a parameter of a statement.  The array is freed when the statement is closed using
+     * `SQLBuilder.close` or returned to the StatementCache (see `free`).
+     */
+    @Throws(SQLException::class)
+    fun bind(ps: PreparedStatement, index: Int) {
+        val array = toArray(ps.connection)
+        arrays.computeIfAbsent(ps) { ArrayList(1) }.add(array)
+        ps.setArray(index, array)
+    }
+
+    /**
+     * Creates the array for a connection.  Oracle collections are created using `OracleConnection.createOracleArray`,
+     * which is called reflectively because the Oracle driver is not a dependency of SQLBuilder.
+     */
+    @Throws(SQLException::class)
+    fun toArray(connection: Connection): java.sql.Array {
+        val values = Array(elements.size) { unmask(elements[it]) }
+        if (!oracle) {
+            return connection.createArrayOf(typeName, values)
+        }
+        val type = Class.forName(ORACLE_CONNECTION)
+        val method = type.getMethod("createOracleArray", String::class.java, Any::class.java)
+        try {
+            return method.invoke(connection.unwrap(type), typeName, values) as java.sql.Array
+        } catch (e: java.lang.reflect.InvocationTargetException) {
+            throw e.cause as? SQLException ?: SQLException(e.cause)
+        }
+    }
+
+    companion object {
+        private const val ORACLE_CONNECTION = "oracle.jdbc.OracleConnection"
+
+        // The arrays bound to statements which were neither closed nor returned to the StatementCache yet
+        private val arrays = ConcurrentHashMap<Statement, MutableList<java.sql.Array>>()
+
+        /**
+         * Returns the parameter for a collection, or null if its elements don't have a common supported type.
+         */
+        fun of(collection: Collection<*>, oracle: Boolean): CollectionParameter? {
+            val elements = collection.toList()
+            // contains null if an element has an unsupported type
+            val types = elements.mapNotNull(::unmask).mapTo(HashSet()) { if (oracle) oracleType(it) else arrayType(it) }
+            val typeName = types.singleOrNull() ?: return null
+            return CollectionParameter(typeName, elements, oracle)
+        }
+
+        /**
+         * Frees the arrays bound to a statement.
+         */
+        fun free(statement: Statement) {
+            arrays.remove(statement)?.forEach { array ->
+                try {
+                    array.free()
+                } catch (e: SQLException) {
+                    logger.warn(e) { "Can't free ${array.javaClass.name}" }
+                }
+            }
+        }
+
+        private fun unmask(value: Any?) = if (value is SQLBuilder.Masked) value.data else value
+
+        // The type names of createArrayOf (e.g. for PostgreSQL and H2)
+        private fun arrayType(element: Any): String? {
+            return when (element) {
+                is Int, is Short, is Byte -> "integer"
+                is Long -> "bigint"
+                is BigDecimal -> "numeric"
+                is Double, is Float -> "float8"
+                is String -> "varchar"
+                is Boolean -> "boolean"
+                is UUID -> "uuid"
+                is Timestamp -> "timestamp"
+                is Date -> "date"
+                else -> null
+            }
+        }
+
+        // The predefined Oracle collection types
+        private fun oracleType(element: Any): String? {
+            return when (element) {
+                is Number -> "SYS.ODCINUMBERLIST"
+                is String -> "SYS.ODCIVARCHAR2LIST"
+                is Date, is Timestamp -> "SYS.ODCIDATELIST"
+                else -> null
+            }
+        }
+    }
+}
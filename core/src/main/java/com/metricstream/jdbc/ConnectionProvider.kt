@@ -1,7 +1,56 @@
 package com.metricstream.jdbc
 
 import java.sql.Connection
+import java.time.Duration
 
-interface ConnectionProvider {
+fun interface ConnectionProvider {
     fun getConnection(): Connection
+
+    /**
+     * Returns a Connection object for a statement with the given intent.  The connection-less SQLBuilder methods use
+     * this method so that providers can route reads to replicas (see RoutingConnectionProvider).  The default
+     * implementation ignores the intent.
+     * @param intent The kind of statement the connection is used for
+     * @return The Connection object
+     */
+    fun getConnection(intent: Intent): Connection = getConnection()
+
+    /**
+     * The kind of statement a connection is requested for
+     */
+    enum class Intent {
+        /**
+         * A query, e.g. `getList` or `getInt`
+         */
+        READ,
+
+        /**
+         * A statement which modifies data (i.e. `execute`), or a connection which is used for arbitrary statements
+         */
+        WRITE,
+
+        /**
+         * A query of a thread which requested a connection for a write within the last `readAfterWriteWindow` and
+         * therefore might have to see its own changes
+         */
+        READ_AFTER_WRITE
+    }
+
+    companion object {
+        @Volatile
+        private var window: Duration = Duration.ofSeconds(2)
+
+        /**
+         * The time after requesting a connection for a write during which the reads of the same thread use the
+         * READ_AFTER_WRITE intent instead of READ.  The writes of asynchronous calls and query groups count as writes
+         * of the calling thread.
+         */
+        @JvmStatic
+        var readAfterWriteWindow: Duration
+            get() = window
+            set(value) {
+                require(!value.isNegative) { "The read-after-write window must not be negative" }
+                window = value
+            }
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.Connection
+import java.sql.SQLException
+import java.sql.SQLFeatureNotSupportedException
+import java.util.concurrent.ConcurrentHashMap
+import com.metricstream.jdbc.ConnectionProvider.Intent
+import io.github.oshai.kotlinlogging.KotlinLogging
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Connection bound to the current thread by `SQLBuilder.withConnection` and `SQLBuilder.inTransaction`
+ *
+ * While a connection is bound, `SQLBuilderProvider.getConnection` returns it to all connection-less SQLBuilder methods
+ * of the thread instead of borrowing a new connection.  The returned object ignores `close`: only the outermost scope
+ * closes the connection.  The first `inTransaction` scope disables auto-commit and commits or rolls back at its end,
+ * while nested `inTransaction` scopes use savepoints.  The asynchronous methods carry the binding over to the thread
+ * which executes them (see `propagate`).
+ */
+internal object ConnectionScope {
+    internal class Binding(val connection: Connection) {
+        val shared: Connection = SharedConnection(connection)
+        var transactional = false
+
+        // The tables modified within the transaction, which are invalidated in the ResultCache at its end.  Concurrent
+        // because asynchronous calls within the scope add to it from other threads.
+        val written: MutableSet<String> = ConcurrentHashMap.newKeySet()
+    }
+
+    // The StatementCache keeps the statements for the underlying connection, so that they survive the scope
+    private class SharedConnection(override val target: Connection) : Connection by target, StatementCache.Delegating {
+        override fun close() {
+            // closed by the scope which borrowed the connection
+        }
+    }
+
+    internal val binding = ThreadLocal<Binding?>()
+
+    // The time at which a thread last requested a connection for a write.  Asynchronous calls use the clock of the
+    // calling thread, so that their writes also make the following reads of the caller READ_AFTER_WRITE.
+    private class WriteClock {
+        @Volatile
+        var written: Long? = null
+    }
+
+    private val lastWrite = ThreadLocal<WriteClock?>()
+
+    fun current(): Connection? = binding.get()?.shared
+
+    /**
+     * Returns action bound to the scope and the write clock of the current thread, so that connection-less calls
+     * within action use the connection (and transaction) of the scope, and reads of the current thread after a write
+     * within action use READ_AFTER_WRITE, even if action runs on another thread.  The scope must not end before action
+     * completed.
+     */
+    fun <T> propagate(action: () -> T): () -> T {
+        val captured = binding.get()
+        val clock = clock()
+        return {
+            val previous = binding.get()
+            val previousClock = lastWrite.get()
+            binding.set(captured)
+            lastWrite.set(clock)
+            try {
+                action()
+            } finally {
+                if (previous == null) binding.remove() else binding.set(previous)
+                if (previousClock == null) lastWrite.remove() else lastWrite.set(previousClock)
+            }
+        }
+    }
+
+    private fun clock(): WriteClock {
+        return lastWrite.get() ?: WriteClock().also { lastWrite.set(it) }
+    }
+
+    /**
+     * Returns the binding of the current thread if it runs a transaction started by `inTransaction`
+     */
+    fun transactional(): Binding? = binding.get()?.takeIf { it.transactional }
+
+    /**
+     * Returns the intent passed to the ConnectionProvider, i.e. READ_AFTER_WRITE for reads shortly after a write.
+     */
+    fun intent(requested: Intent): Intent {
+        if (requested == Intent.WRITE) {
+            clock().written = System.nanoTime()
+        } else if (requested == Intent.READ) {
+            val written = lastWrite.get()?.written ?: return requested
+            if (System.nanoTime() - written < ConnectionProvider.readAfterWriteWindow.toNanos()) {
+                return Intent.READ_AFTER_WRITE
+            }
+        }
+        return requested
+    }
+
+    @Throws(SQLException::class)
+    fun <T> withConnection(action: SQLBuilder.ConnectionAction<T>): T {
+        binding.get()?.let { return action.execute(it.shared) }
+        return SQLBuilder.delegate.getConnection().use { connection ->
+            val scope = Binding(connection)
+            binding.set(scope)
+            try {
+                action.execute(scope.shared)
+            } finally {
+                binding.remove()
+            }
+        }
+    }
+
+    @Throws(SQLException::class)
+    fun <T> inTransaction(action: SQLBuilder.ConnectionAction<T>): T {
+        return withConnection {
+            val scope = checkNotNull(binding.get())
+            if (scope.transactional) savepoint(scope, action) else transaction(scope, action)
+        }
+    }
+
+    private fun <T> transaction(scope: Binding, action: SQLBuilder.ConnectionAction<T>): T {
+        val connection = scope.connection
+        val autoCommit = connection.autoCommit
+        connection.autoCommit = false
+        scope.transactional = true
+        var failure: Throwable? = null
+        try {
+            return action.execute(scope.shared).also { connection.commit() }
+        } catch (e: Throwable) {
+            failure = e
+            suppress(e) { connection.rollback() }
+            throw e
+        } finally {
+            scope.transactional = false
+            if (scope.written.isNotEmpty()) {
+                ResultCache.invalidateTables(scope.written)
+                scope.written.clear()
+            }
+            // A failure to restore auto-commit must not hide the exception which ended the transaction
+            if (failure == null) {
+                connection.autoCommit = autoCommit
+            } else {
+                suppress(failure) { connection.autoCommit = autoCommit }
+            }
+        }
+    }
+
+    private fun <T> savepoint(scope: Binding, action: SQLBuilder.ConnectionAction<T>): T {
+        val connection = scope.connection
+        val savepoint = connection.setSavepoint()
+        try {
+            return action.execute(scope.shared).also {
+                try {
+                    connection.releaseSavepoint(savepoint)
+                } catch (e: SQLFeatureNotSupportedException) {
+                    // e.g. Oracle releases savepoints only at the end of the transaction
+                    logger.trace(e) { "Can't release savepoint" }
+                }
+            }
+        } catch (e: Throwable) {
+            suppress(e) { connection.rollback(savepoint) }
+            // Results cached by this session after its changes are outdated by the rollback
+            ResultCache.invalidateTables(scope.written)
+            throw e
+        }
+    }
+
+    // Runs action and adds its SQLException (if any) as suppressed exception to cause
+    private inline fun suppress(cause: Throwable, action: () -> Unit) {
+        try {
+            action()
+        } catch (e: SQLException) {
+            cause.addSuppressed(e)
+        }
+    }
+}
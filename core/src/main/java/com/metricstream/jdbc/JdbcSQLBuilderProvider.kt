@@ -10,6 +10,7 @@ import kotlin.Throws
 import java.sql.SQLException
 import java.sql.PreparedStatement
 import java.sql.ResultSet
+import com.metricstream.jdbc.SQLBuilder.BatchItem
 import com.metricstream.jdbc.SQLBuilder.Masked
 import java.math.BigDecimal
 import java.sql.Connection
@@ -19,6 +20,7 @@ import java.time.OffsetDateTime
 import java.time.Instant
 import java.util.Optional
 import java.util.ServiceLoader
+import java.util.stream.Stream
 
 internal class JdbcSQLBuilderProvider : SQLBuilderProvider {
 
@@ -26,43 +28,225 @@ internal class JdbcSQLBuilderProvider : SQLBuilderProvider {
     private fun build(
         sqlBuilder: SQLBuilder,
         connection: Connection,
+        probe: QueryProbe?,
         vararg columns: String
     ): PreparedStatement {
         val expanded: MutableList<Any?> = mutableListOf()
         sqlBuilder.interpolate(SQLBuilder.Mode.EXPAND_AND_APPLY, expanded)
-        val ps: PreparedStatement = if (columns.isEmpty()) {
+        val sql = sqlBuilder.statement.toString()
+        val ps = prepare(sqlBuilder, connection, sql, columns)
+        probe?.prepared(sql, expanded, false)
+        try {
+            setup(ps, sqlBuilder, sql, expanded, false)
+        } catch (ex: Throwable) {
+            close(ps)
+            throw ex
+        }
+        probe?.bound()
+        return ps
+    }
+
+    @Throws(SQLException::class)
+    private fun prepare(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        sql: String,
+        columns: Array<out String>
+    ): PreparedStatement {
+        return if (columns.isEmpty()) {
             connection.prepareStatement(
-                sqlBuilder.statement.toString(),
+                sql,
                 sqlBuilder.resultSetType,
                 sqlBuilder.resultSetConcurrency
             )
         } else {
             connection.prepareStatement(
-                sqlBuilder.statement.toString(),
+                sql,
                 columns
             )
         }
+    }
+
+    @Throws(SQLException::class)
+    private fun setup(ps: PreparedStatement, sqlBuilder: SQLBuilder, sql: String, expanded: List<Any?>, reused: Boolean) {
+        // A reused statement still has the settings from its previous usage
+        val fetchSize = when {
+            sqlBuilder.fetchSize > 0 || !AdaptiveFetchSize.enabled -> sqlBuilder.fetchSize
+            else -> AdaptiveFetchSize.fetchSize(sql, AdaptiveFetchSize.driverDefault(ps, reused))
+        }
+        if (fetchSize > 0) {
+            ps.fetchSize = fetchSize
+        } else if (reused) {
+            ps.fetchSize = 0
+        }
+        if (sqlBuilder.maxRows >= 0) {
+            ps.maxRows = sqlBuilder.maxRows
+        } else if (reused) {
+            ps.maxRows = 0
+        }
+        val timeout = sqlBuilder.timeout ?: SQLBuilder.defaultTimeout
+        if (timeout != null) {
+            // JDBC timeouts are in seconds, and 0 means no timeout
+            val seconds = if (timeout.nano > 0) timeout.seconds + 1 else timeout.seconds
+            ps.queryTimeout = minOf(seconds, Int.MAX_VALUE.toLong()).toInt()
+        } else if (reused) {
+            ps.queryTimeout = 0
+        }
+        if (expanded.isNotEmpty()) {
+            expanded.forEachIndexed { index, arg -> setParameter(ps, index + 1, arg) }
+        }
+    }
+
+    @Throws(SQLException::class)
+    private fun setParameter(ps: PreparedStatement, index: Int, arg: Any?) {
+        when (arg) {
+            is LongString -> ps.setCharacterStream(index, arg.reader)
+            is Masked -> ps.setObject(index, arg.data)
+            is BatchItem -> setParameter(ps, index, arg.value)
+            is CollectionParameter -> arg.bind(ps, index)
+            else -> ps.setObject(index, arg)
+        }
+    }
+
+    /**
+     * Builds a PreparedStatement and passes it to action. The statement is closed afterward, or returned to the
+     * StatementCache if that is enabled and the action completed normally.  The execution is reported to the
+     * QueryInstrumentation if that has listeners.
+     */
+    @Throws(SQLException::class)
+    private inline fun <T> withStatement(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        action: (PreparedStatement, QueryProbe?) -> T
+    ): T {
+        val probe = QueryInstrumentation.probe(sqlBuilder)
         try {
-            if (sqlBuilder.fetchSize > 0) {
-                ps.fetchSize = sqlBuilder.fetchSize
-            }
-            if (sqlBuilder.maxRows >= 0) {
-                ps.maxRows = sqlBuilder.maxRows
-            }
-            if (expanded.isNotEmpty()) {
-                expanded.forEachIndexed { index, arg ->
-                    when (arg) {
-                        is LongString -> ps.setCharacterStream(index + 1, arg.reader)
-                        is Masked -> ps.setObject(index + 1, arg.data)
-                        else -> ps.setObject(index + 1, arg)
+            val result = if (StatementCache.enabled) {
+                withCachedStatement(sqlBuilder, connection, probe, action)
+            } else {
+                build(sqlBuilder, connection, probe).use { ps ->
+                    try {
+                        cancellable(sqlBuilder, ps) { action(ps, probe) }
+                    } finally {
+                        CollectionParameter.free(ps)
                     }
                 }
             }
-        } catch (ex: SQLException) {
-            close(ps)
+            probe?.finish(null)
+            return result
+        } catch (ex: Throwable) {
+            probe?.finish(ex)
             throw ex
         }
-        return ps
+    }
+
+    @Throws(SQLException::class)
+    private inline fun <T> withCachedStatement(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        probe: QueryProbe?,
+        action: (PreparedStatement, QueryProbe?) -> T
+    ): T {
+        val (key, ps) = takeStatement(sqlBuilder, connection, probe, emptyList())
+        var completed = false
+        try {
+            val result = cancellable(sqlBuilder, ps) { action(ps, probe) }
+            completed = true
+            return result
+        } finally {
+            giveBack(connection, key, ps, completed)
+        }
+    }
+
+    /**
+     * Takes the statement of sqlBuilder from the StatementCache, or prepares it if there is none, and binds the
+     * parameters.
+     * @return the key of the statement in the StatementCache, and the statement
+     */
+    @Throws(SQLException::class)
+    private fun takeStatement(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        probe: QueryProbe?,
+        keyColumns: List<String>
+    ): Pair<StatementCache.Key, PreparedStatement> {
+        val expanded: MutableList<Any?> = mutableListOf()
+        sqlBuilder.interpolate(SQLBuilder.Mode.EXPAND_AND_APPLY, expanded)
+        val key = cacheKey(sqlBuilder, keyColumns)
+        val cached = StatementCache.take(connection, key)
+        val ps = cached ?: prepare(sqlBuilder, connection, key.sql, key.keyColumns.toTypedArray())
+        probe?.prepared(key.sql, expanded, cached != null)
+        try {
+            setup(ps, sqlBuilder, key.sql, expanded, cached != null)
+        } catch (ex: Throwable) {
+            giveBack(connection, key, ps, false)
+            throw ex
+        }
+        probe?.bound()
+        return key to ps
+    }
+
+    private fun cacheKey(sqlBuilder: SQLBuilder, keyColumns: List<String>): StatementCache.Key {
+        return StatementCache.Key(sqlBuilder.statement.toString(), sqlBuilder.resultSetType, sqlBuilder.resultSetConcurrency, keyColumns)
+    }
+
+    // Returns a statement of takeStatement to the StatementCache, or closes it if its usage failed
+    private fun giveBack(connection: Connection, key: StatementCache.Key, ps: PreparedStatement, completed: Boolean) {
+        CollectionParameter.free(ps)
+        if (!completed || !StatementCache.offer(connection, key, ps)) {
+            close(ps)
+        }
+    }
+
+    /**
+     * Attaches the statement to the CancelHandle of the current call or of sqlBuilder (if any) while action runs.
+     */
+    @Throws(SQLException::class)
+    private inline fun <T> cancellable(sqlBuilder: SQLBuilder, ps: PreparedStatement, action: () -> T): T {
+        val handle = CancelHandle.of(sqlBuilder) ?: return action()
+        val previous = handle.attach(ps)
+        try {
+            return action()
+        } finally {
+            handle.detach(previous)
+        }
+    }
+
+    /**
+     * Executes the query and passes its ResultSet to action.  The ResultSet counts the rows if the execution is
+     * reported to the QueryInstrumentation or if the AdaptiveFetchSize needs to learn the size of the result.
+     */
+    @Throws(SQLException::class)
+    private inline fun <T> withQuery(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        action: (ResultSet) -> T
+    ): T {
+        return withStatement(sqlBuilder, connection) { ps, probe ->
+            val rs = ps.executeQuery()
+            probe?.executed()
+            val adaptive = sqlBuilder.fetchSize <= 0 && AdaptiveFetchSize.enabled
+            if (probe == null && !adaptive) {
+                rs.use(action)
+            } else {
+                val columns = if (adaptive) rs.metaData.columnCount else 0
+                val counting = CountingResultSet(rs)
+                counting.use(action).also {
+                    probe?.fetched(counting.rows)
+                    if (adaptive) {
+                        AdaptiveFetchSize.record(sqlBuilder.statement.toString(), counting.rows, columns)
+                    }
+                }
+            }
+        }
+    }
+
+    private class CountingResultSet(private val rs: ResultSet) : ResultSet by rs {
+        var rows = 0L
+
+        override fun next(): Boolean {
+            return rs.next().also { if (it) rows++ }
+        }
     }
 
     @Throws(SQLException::class)
@@ -71,14 +255,19 @@ internal class JdbcSQLBuilderProvider : SQLBuilderProvider {
         connection: Connection,
         wrapConnection: Boolean
     ): ResultSet {
+        val probe = QueryInstrumentation.probe(sqlBuilder)
         var preparedStatement: PreparedStatement? = null
         return try {
-            preparedStatement = build(sqlBuilder, connection)
+            preparedStatement = build(sqlBuilder, connection, probe)
+            CancelHandle.of(sqlBuilder)?.attach(preparedStatement)
             preparedStatement.executeQuery()!!.let { rs ->
+                probe?.executed()
+                probe?.finish(null)
                 if (wrapConnection) wrapConnection(rs) else wrapStatement(rs)
             }
-        } catch (e: SQLException) {
+        } catch (e: Throwable) {
             close(preparedStatement)
+            probe?.finish(e)
             throw e
         }
     }
@@ -112,10 +301,8 @@ internal class JdbcSQLBuilderProvider : SQLBuilderProvider {
         transform: (ResultSet) -> T,
         defaultValue: T
     ): T {
-        build(sqlBuilder, connection).use { ps ->
-            ps.executeQuery().use { rs ->
-                return if (rs.next()) transform(rs) else defaultValue
-            }
+        return withQuery(sqlBuilder, connection) { rs ->
+            if (rs.next()) transform(rs) else defaultValue
         }
     }
 
@@ -564,7 +751,7 @@ internal class JdbcSQLBuilderProvider : SQLBuilderProvider {
      */
     @Throws(SQLException::class)
     override fun execute(sqlBuilder: SQLBuilder, connection: Connection): Int {
-        build(sqlBuilder, connection).use { ps -> return ps.executeUpdate() }
+        return withStatement(sqlBuilder, connection) { ps, probe -> ps.executeUpdate().also { probe?.updated(it) } }
     }
 
     /**
@@ -581,9 +768,169 @@ internal class JdbcSQLBuilderProvider : SQLBuilderProvider {
         connection: Connection,
         vararg keyColumns: String
     ): ResultSet {
-        val ps = build(sqlBuilder, connection, *keyColumns)
-        ps.executeUpdate()
-        return wrapStatement(ps.generatedKeys)
+        val probe = QueryInstrumentation.probe(sqlBuilder)
+        if (StatementCache.enabled) {
+            return executeCached(sqlBuilder, connection, probe, keyColumns.asList())
+        }
+        var ps: PreparedStatement? = null
+        try {
+            ps = build(sqlBuilder, connection, probe, *keyColumns)
+            CancelHandle.of(sqlBuilder)?.attach(ps)
+            probe?.updated(ps.executeUpdate())
+            val keys = ps.generatedKeys
+            probe?.finish(null)
+            return wrapStatement(keys)
+        } catch (ex: Throwable) {
+            close(ps)
+            probe?.finish(ex)
+            throw ex
+        }
+    }
+
+    /**
+     * Executes the statement using a statement of the StatementCache.  The statement is returned to the cache when the
+     * ResultSet of the generated keys is closed.
+     */
+    @Throws(SQLException::class)
+    private fun executeCached(sqlBuilder: SQLBuilder, connection: Connection, probe: QueryProbe?, keyColumns: List<String>): ResultSet {
+        try {
+            val (key, ps) = takeStatement(sqlBuilder, connection, probe, keyColumns)
+            try {
+                cancellable(sqlBuilder, ps) { probe?.updated(ps.executeUpdate()) }
+                val keys = GeneratedKeys(ps.generatedKeys) { completed -> giveBack(connection, key, ps, completed) }
+                probe?.finish(null)
+                return keys
+            } catch (ex: Throwable) {
+                giveBack(connection, key, ps, false)
+                throw ex
+            }
+        } catch (ex: Throwable) {
+            probe?.finish(ex)
+            throw ex
+        }
+    }
+
+    /**
+     * The generated keys of a statement from the StatementCache.  Closing them returns the statement to the cache.
+     */
+    private class GeneratedKeys(private val rs: ResultSet, private val release: (Boolean) -> Unit) : ResultSet by rs {
+        private var open = true
+
+        override fun close() {
+            if (open) {
+                open = false
+                val closed = try {
+                    rs.close()
+                    true
+                } catch (ex: SQLException) {
+                    false
+                }
+                release(closed)
+            }
+        }
+
+        override fun isClosed(): Boolean {
+            return !open || rs.isClosed
+        }
+    }
+
+    /**
+     * State of a running batch: the statement reused for all rows, the parameter indices of the batch items
+     * together with the values last bound to them, and the update counts of the rows already sent (unless
+     * `SQLBuilder.batchCounts` is false).  The statement is returned to the StatementCache if it was taken from there
+     * (i.e. key is set) and all its rows were sent successfully.
+     */
+    private class Batch(
+        val statement: PreparedStatement,
+        val indices: IntArray,
+        val items: Array<BatchItem>,
+        val connection: Connection,
+        val key: StatementCache.Key?,
+    ) : AutoCloseable {
+        val bound = Array(items.size) { items[it].value }
+        var pending = 0
+        var failed = false
+        val counts = LongList()
+
+        override fun close() {
+            if (key != null && pending == 0 && !failed) {
+                CollectionParameter.free(statement)
+                if (StatementCache.offer(connection, key, statement)) {
+                    return
+                }
+            }
+            SQLBuilder.close(statement)
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun addBatch(sqlBuilder: SQLBuilder, connection: Connection) {
+        var batch = sqlBuilder.batch as Batch?
+        if (batch == null) {
+            val expanded: MutableList<Any?> = mutableListOf()
+            sqlBuilder.interpolate(SQLBuilder.Mode.EXPAND_AND_APPLY, expanded)
+            val sql = sqlBuilder.statement.toString()
+            val key = if (StatementCache.enabled) cacheKey(sqlBuilder, sqlBuilder.keyColumns) else null
+            val cached = key?.let { StatementCache.take(connection, it) }
+            val ps = cached ?: prepare(sqlBuilder, connection, sql, sqlBuilder.keyColumns.toTypedArray())
+            val indices = expanded.indices.filter { expanded[it] is BatchItem }.toIntArray()
+            batch = Batch(ps, indices, Array(indices.size) { expanded[indices[it]] as BatchItem }, connection, key)
+            sqlBuilder.batch = batch
+            batched(batch) { setup(ps, sqlBuilder, sql, expanded, cached != null) }
+        } else {
+            // All other parameters keep the values bound for the previous row
+            batched(batch) {
+                for (i in batch.items.indices) {
+                    val value = batch.items[i].value
+                    if (value !== batch.bound[i]) {
+                        setParameter(batch.statement, batch.indices[i] + 1, value)
+                        batch.bound[i] = value
+                    }
+                }
+            }
+        }
+        batched(batch) { batch.statement.addBatch() }
+        if (++batch.pending >= sqlBuilder.batchSize) {
+            flush(sqlBuilder, batch)
+        }
+    }
+
+    @Throws(SQLException::class)
+    private fun flush(sqlBuilder: SQLBuilder, batch: Batch) {
+        batched(batch) {
+            val counts = batch.statement.executeBatch()
+            if (sqlBuilder.batchCounts) {
+                counts.forEach { batch.counts.add(it.toLong()) }
+            }
+            batch.pending = 0
+            sqlBuilder.keyConsumer?.let { keyConsumer ->
+                batch.statement.generatedKeys.use { rs ->
+                    while (rs.next()) {
+                        keyConsumer.accept(rs)
+                    }
+                }
+            }
+        }
+    }
+
+    // Runs action on the statement of batch, which is not returned to the StatementCache if action fails
+    @Throws(SQLException::class)
+    private inline fun batched(batch: Batch, action: () -> Unit) {
+        try {
+            action()
+        } catch (ex: Throwable) {
+            batch.failed = true
+            throw ex
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun executeBatch(sqlBuilder: SQLBuilder, connection: Connection): LongArray {
+        val batch = sqlBuilder.batch as Batch? ?: return LongArray(0)
+        if (batch.pending > 0) {
+            flush(sqlBuilder, batch)
+        }
+        return batch.counts.toLongArray()
     }
 
     @Throws(SQLException::class)
@@ -592,10 +939,114 @@ internal class JdbcSQLBuilderProvider : SQLBuilderProvider {
         connection: Connection,
         rowMapper: SQLBuilder.RowMapper<T>
     ): List<T> {
-        build(sqlBuilder, connection).use { ps ->
-            ps.executeQuery().use { rs ->
-                return getList(rs, rowMapper, false)
-            }
+        return withQuery(sqlBuilder, connection) { rs ->
+            getList(rs, rowMapper, false)
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun <V> getLongKeyedMap(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        keyColumn: Int,
+        rowMapper: SQLBuilder.RowMapper<V?>,
+        withNull: Boolean
+    ): LongKeyedMap<V?> {
+        return withQuery(sqlBuilder, connection) { rs ->
+            getLongKeyedMap(rs, keyColumn, rowMapper, withNull)
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun <V> getIntKeyedMap(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        keyColumn: Int,
+        rowMapper: SQLBuilder.RowMapper<V?>,
+        withNull: Boolean
+    ): IntKeyedMap<V?> {
+        return withQuery(sqlBuilder, connection) { rs ->
+            getIntKeyedMap(rs, keyColumn, rowMapper, withNull)
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun getIntList(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        columnNumber: Int
+    ): IntList {
+        return withQuery(sqlBuilder, connection) { rs ->
+            getIntList(rs, columnNumber)
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun getLongList(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        columnNumber: Int
+    ): LongList {
+        return withQuery(sqlBuilder, connection) { rs ->
+            getLongList(rs, columnNumber)
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun getDoubleList(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        columnNumber: Int
+    ): DoubleList {
+        return withQuery(sqlBuilder, connection) { rs ->
+            getDoubleList(rs, columnNumber)
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun forEach(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        rowConsumer: SQLBuilder.RowConsumer
+    ) {
+        withQuery(sqlBuilder, connection) { rs ->
+            forEach(rs, rowConsumer)
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun <A> fold(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        initial: A,
+        rowFolder: SQLBuilder.RowFolder<A>
+    ): A {
+        return withQuery(sqlBuilder, connection) { rs ->
+            fold(rs, initial, rowFolder)
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun <T> stream(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        rowMapper: SQLBuilder.RowMapper<T>,
+        closeConnection: Boolean
+    ): Stream<T> {
+        // The statement stays open while the stream is consumed and thus bypasses the StatementCache
+        val probe = QueryInstrumentation.probe(sqlBuilder)
+        var ps: PreparedStatement? = null
+        try {
+            ps = build(sqlBuilder, connection, probe)
+            CancelHandle.of(sqlBuilder)?.attach(ps)
+            val rs = ps.executeQuery()
+            probe?.executed()
+            probe?.finish(null)
+            return if (closeConnection) stream(rs, rowMapper, ps, connection) else stream(rs, rowMapper, ps)
+        } catch (ex: Throwable) {
+            close(ps)
+            probe?.finish(ex)
+            throw ex
         }
     }
 
@@ -605,10 +1056,8 @@ internal class JdbcSQLBuilderProvider : SQLBuilderProvider {
         connection: Connection,
         rowMapper: SQLBuilder.RowMapper<T?>,
     ): List<T?> {
-        build(sqlBuilder, connection).use { ps ->
-            ps.executeQuery().use { rs ->
-                return getList(rs, rowMapper, true)
-            }
+        return withQuery(sqlBuilder, connection) { rs ->
+            getList(rs, rowMapper, true)
         }
     }
 
@@ -619,10 +1068,8 @@ internal class JdbcSQLBuilderProvider : SQLBuilderProvider {
         rowMapper: SQLBuilder.RowMapper<Map.Entry<K, V?>>,
         withNull: Boolean
     ): Map<K, V?> {
-        build(sqlBuilder, connection).use { ps ->
-            ps.executeQuery().use { rs ->
-                return getMap(rs, rowMapper, withNull)
-            }
+        return withQuery(sqlBuilder, connection) { rs ->
+            getMap(rs, rowMapper, withNull)
         }
     }
 
@@ -632,10 +1079,8 @@ internal class JdbcSQLBuilderProvider : SQLBuilderProvider {
         connection: Connection,
         rowMapper: SQLBuilder.RowMapper<T?>
     ): Optional<T> {
-        build(sqlBuilder, connection).use { ps ->
-            ps.executeQuery().use { rs ->
-                return Optional.ofNullable(if (rs.next()) rowMapper.map(rs) else null)
-            }
+        return withQuery(sqlBuilder, connection) { rs ->
+            Optional.ofNullable(if (rs.next()) rowMapper.map(rs) else null)
         }
     }
 
@@ -0,0 +1,396 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.sql.CallableStatement
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+import java.sql.SQLException
+import java.sql.SQLNonTransientConnectionException
+import java.sql.SQLTransientConnectionException
+import java.sql.Statement
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import io.github.oshai.kotlinlogging.KotlinLogging
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * ConnectionProvider which pools the connections created by another ConnectionProvider
+ *
+ * The connections returned by `getConnection` are returned to the pool instead of being closed when the caller closes
+ * them.  The pool holds at most `maxSize` connections and callers wait up to `borrowTimeout` for a connection when all
+ * of them are in use.  Idle connections are kept in a lock-free queue and the most recently returned connection is
+ * borrowed first.  A connection is only validated when it was idle for longer than `validationInterval`, and idle
+ * connections are closed after `idleTimeout` as long as the pool holds more than `minSize` connections.  Connections are
+ * created on demand, i.e. `minSize` is the number of connections kept open, not created upfront.
+ *
+ * Every checkout hands out a new Connection object which forwards to the physical connection until it is closed.
+ * Afterward all its methods except `close` and `isClosed` throw, and closing it again does nothing, so a stale
+ * reference can neither use nor return the connection of the next borrower.  The StatementCache keeps the statements
+ * for the physical connection across checkouts, and the pool releases them when it closes the physical connection.
+ * The statements (and their ResultSets) are wrapped, so that `getConnection` returns the current checkout, and closing
+ * it returns the connection to the pool.  Only the `DatabaseMetaData` still returns the physical connection.
+ * Connections which are returned with auto-commit disabled are rolled back and switched back to auto-commit.
+ *
+ * If `leakThreshold` is set, the pool records the stack of every caller and logs it (once) as a warning when a
+ * connection was not returned within the threshold.  The check runs whenever a connection is borrowed, as does the
+ * check for idle connections which exceeded `idleTimeout`.
+ *
+ * To use the pool for the connection-less SQLBuilder methods, register a subclass with a no-argument constructor as
+ * the ConnectionProvider service:
+ * <pre>`class AppConnectionProvider : PooledConnectionProvider({ DriverManager.getConnection(URL, USER, PASSWORD) }, maxSize = 20)
+ * `</pre>
+ */
+open class PooledConnectionProvider @JvmOverloads constructor(
+    private val factory: ConnectionProvider,
+    val minSize: Int = 0,
+    val maxSize: Int = DEFAULT_MAX_SIZE,
+    val borrowTimeout: Duration = DEFAULT_BORROW_TIMEOUT,
+    val validationInterval: Duration = DEFAULT_VALIDATION_INTERVAL,
+    val idleTimeout: Duration = DEFAULT_IDLE_TIMEOUT
+) : ConnectionProvider, AutoCloseable {
+    private val idle = ConcurrentLinkedDeque<PooledConnection>()
+    private val leased: MutableSet<PooledConnection> = ConcurrentHashMap.newKeySet()
+    private val permits = Semaphore(maxSize, true)
+    private val totalCount = AtomicInteger()
+    private val borrowCount = AtomicLong()
+    private val createCount = AtomicLong()
+    private val timeoutCount = AtomicLong()
+    private val leakCount = AtomicLong()
+
+    @Volatile
+    private var closed = false
+
+    init {
+        require(maxSize > 0) { "The maximal size must be positive" }
+        require(minSize in 0..maxSize) { "The minimal size must be between 0 and the maximal size" }
+        require(listOf(borrowTimeout, validationInterval, idleTimeout).none { it.isNegative }) { "The durations must not be negative" }
+    }
+
+    /**
+     * The time after which a borrowed connection which was not returned is reported as leaked.  Duration.ZERO (the
+     * default) disables the leak detection.
+     */
+    @Volatile
+    var leakThreshold: Duration = Duration.ZERO
+        set(value) {
+            require(!value.isNegative) { "The leak threshold must not be negative" }
+            field = value
+        }
+
+    // A physical connection owned by the pool
+    private class PooledConnection(val physical: Connection) {
+        // The time of the last borrow or return
+        @Volatile
+        var since = System.nanoTime()
+
+        @Volatile
+        var borrower: Throwable? = null
+
+        @Volatile
+        var reported = false
+
+        // The Connection object of the current (or last) checkout
+        @Volatile
+        var checkout: Connection? = null
+    }
+
+    // A single checkout of a pooled connection.  The handed out proxy forwards to the physical connection until close.
+    private inner class Checkout(private val pooled: PooledConnection) : InvocationHandler {
+        private val open = AtomicBoolean(true)
+
+        override fun invoke(proxy: Any, method: Method, args: Array<out Any?>?): Any? {
+            when {
+                method.declaringClass == StatementCache.Delegating::class.java -> return pooled.physical
+                method.name == "close" && args.isNullOrEmpty() -> {
+                    if (open.compareAndSet(true, false)) {
+                        giveBack(pooled)
+                    }
+                    return null
+                }
+                method.name == "isClosed" && args.isNullOrEmpty() -> return !open.get() || pooled.physical.isClosed
+                method.name == "equals" && args?.size == 1 -> return proxy === args[0]
+                method.name == "hashCode" && args.isNullOrEmpty() -> return System.identityHashCode(proxy)
+                method.name == "toString" && args.isNullOrEmpty() -> return "Checkout of ${pooled.physical}"
+            }
+            if (!open.get()) {
+                throw SQLNonTransientConnectionException("The connection was returned to the pool")
+            }
+            val result = try {
+                method.invoke(pooled.physical, *args.orEmpty())
+            } catch (e: InvocationTargetException) {
+                throw e.targetException
+            }
+            return when (result) {
+                is CallableStatement -> PooledCallableStatement(result, pooled)
+                is PreparedStatement -> PooledPreparedStatement(result, pooled)
+                is Statement -> PooledStatement(result, pooled)
+                else -> result
+            }
+        }
+    }
+
+    // The statements of a pooled connection return the current checkout instead of the physical connection.  The
+    // checkout is looked up on every call because the StatementCache reuses the statements in later checkouts.
+    private class PooledStatement(private val statement: Statement, private val pooled: PooledConnection) : Statement by statement {
+        override fun getConnection(): Connection? = pooled.checkout
+
+        override fun executeQuery(sql: String?): ResultSet = PooledResultSet(statement.executeQuery(sql), this)
+
+        override fun getResultSet(): ResultSet? = statement.resultSet?.let { PooledResultSet(it, this) }
+
+        override fun getGeneratedKeys(): ResultSet = PooledResultSet(statement.generatedKeys, this)
+    }
+
+    private class PooledPreparedStatement(
+        private val statement: PreparedStatement,
+        private val pooled: PooledConnection
+    ) : PreparedStatement by statement {
+        override fun getConnection(): Connection? = pooled.checkout
+
+        override fun executeQuery(): ResultSet = PooledResultSet(statement.executeQuery(), this)
+
+        override fun executeQuery(sql: String?): ResultSet = PooledResultSet(statement.executeQuery(sql), this)
+
+        override fun getResultSet(): ResultSet? = statement.resultSet?.let { PooledResultSet(it, this) }
+
+        override fun getGeneratedKeys(): ResultSet = PooledResultSet(statement.generatedKeys, this)
+    }
+
+    private class PooledCallableStatement(
+        private val statement: CallableStatement,
+        private val pooled: PooledConnection
+    ) : CallableStatement by statement {
+        override fun getConnection(): Connection? = pooled.checkout
+
+        override fun executeQuery(): ResultSet = PooledResultSet(statement.executeQuery(), this)
+
+        override fun executeQuery(sql: String?): ResultSet = PooledResultSet(statement.executeQuery(sql), this)
+
+        override fun getResultSet(): ResultSet? = statement.resultSet?.let { PooledResultSet(it, this) }
+
+        override fun getGeneratedKeys(): ResultSet = PooledResultSet(statement.generatedKeys, this)
+    }
+
+    private class PooledResultSet(private val rs: ResultSet, private val statement: Statement) : ResultSet by rs {
+        override fun getStatement(): Statement = statement
+    }
+
+    /**
+     * The number of connections which are currently borrowed
+     */
+    val activeConnections: Int
+        get() = leased.size
+
+    /**
+     * The number of connections which are currently idle
+     */
+    val idleConnections: Int
+        get() = idle.size
+
+    /**
+     * The number of open physical connections
+     */
+    val totalConnections: Int
+        get() = totalCount.get()
+
+    /**
+     * The number of successful `getConnection` calls
+     */
+    val borrowed: Long
+        get() = borrowCount.get()
+
+    /**
+     * The number of physical connections created
+     */
+    val created: Long
+        get() = createCount.get()
+
+    /**
+     * The number of `getConnection` calls which failed because no connection became available within `borrowTimeout`
+     */
+    val timeouts: Long
+        get() = timeoutCount.get()
+
+    /**
+     * The number of connections which were not returned within `leakThreshold`
+     */
+    val leaks: Long
+        get() = leakCount.get()
+
+    @Throws(SQLException::class)
+    override fun getConnection(): Connection {
+        if (closed) {
+            throw SQLNonTransientConnectionException("The connection pool is closed")
+        }
+        detectLeaks()
+        evictIdle()
+        try {
+            if (!permits.tryAcquire(borrowTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                timeoutCount.incrementAndGet()
+                throw SQLTransientConnectionException("No connection available within $borrowTimeout ($maxSize connections in use)")
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw SQLTransientConnectionException("Interrupted while waiting for a connection", e)
+        }
+        try {
+            val connection = idleConnection() ?: create()
+            connection.since = System.nanoTime()
+            connection.borrower = if (leakThreshold.isZero) null else Exception("Connection borrowed by ${Thread.currentThread().name}")
+            connection.reported = false
+            leased.add(connection)
+            borrowCount.incrementAndGet()
+            val checkout = Proxy.newProxyInstance(
+                StatementCache.Delegating::class.java.classLoader,
+                arrayOf(Connection::class.java, StatementCache.Delegating::class.java),
+                Checkout(connection)
+            ) as Connection
+            connection.checkout = checkout
+            return checkout
+        } catch (e: Throwable) {
+            permits.release()
+            throw e
+        }
+    }
+
+    /**
+     * Closes all idle connections.  Borrowed connections are closed when they are returned.
+     */
+    override fun close() {
+        closed = true
+        while (true) {
+            destroy(idle.pollFirst() ?: break)
+        }
+    }
+
+    private fun idleConnection(): PooledConnection? {
+        while (true) {
+            val connection = idle.pollFirst() ?: return null
+            if (System.nanoTime() - connection.since < validationInterval.toNanos() || isValid(connection.physical)) {
+                return connection
+            }
+            logger.debug { "Closing invalid connection" }
+            destroy(connection)
+        }
+    }
+
+    private fun create(): PooledConnection {
+        totalCount.incrementAndGet()
+        try {
+            return PooledConnection(factory.getConnection()).also { createCount.incrementAndGet() }
+        } catch (e: Throwable) {
+            totalCount.decrementAndGet()
+            throw e
+        }
+    }
+
+    private fun giveBack(connection: PooledConnection) {
+        leased.remove(connection)
+        try {
+            if (closed || !reset(connection.physical)) {
+                destroy(connection)
+            } else {
+                connection.since = System.nanoTime()
+                idle.offerFirst(connection)
+            }
+        } finally {
+            permits.release()
+        }
+        evictIdle()
+        // close could have been called between the check and offerFirst
+        if (closed) {
+            close()
+        }
+    }
+
+    // Closes the least recently used idle connections which exceeded the idle timeout
+    private fun evictIdle() {
+        while (totalCount.get() > minSize) {
+            val oldest = idle.peekLast() ?: return
+            if (System.nanoTime() - oldest.since < idleTimeout.toNanos()) {
+                return
+            }
+            if (idle.removeLastOccurrence(oldest)) {
+                destroy(oldest)
+            }
+        }
+    }
+
+    private fun detectLeaks() {
+        if (leakThreshold.isZero) {
+            return
+        }
+        val now = System.nanoTime()
+        leased.forEach { connection ->
+            val borrower = connection.borrower
+            if (borrower != null && !connection.reported && now - connection.since > leakThreshold.toNanos()) {
+                connection.reported = true
+                leakCount.incrementAndGet()
+                logger.warn(borrower) { "Connection was not returned within $leakThreshold" }
+            }
+        }
+    }
+
+    private fun destroy(connection: PooledConnection) {
+        totalCount.decrementAndGet()
+        // The StatementCache keeps the statements of all checkouts for the physical connection
+        StatementCache.release(connection.physical)
+        try {
+            connection.physical.close()
+        } catch (e: SQLException) {
+            logger.debug(e) { "Can't close connection" }
+        }
+    }
+
+    companion object {
+        private const val VALIDATION_TIMEOUT_SECONDS = 5
+
+        const val DEFAULT_MAX_SIZE = 10
+
+        @JvmField
+        val DEFAULT_BORROW_TIMEOUT: Duration = Duration.ofSeconds(30)
+
+        @JvmField
+        val DEFAULT_VALIDATION_INTERVAL: Duration = Duration.ofSeconds(10)
+
+        @JvmField
+        val DEFAULT_IDLE_TIMEOUT: Duration = Duration.ofMinutes(10)
+
+        private fun isValid(connection: Connection): Boolean {
+            return try {
+                connection.isValid(VALIDATION_TIMEOUT_SECONDS)
+            } catch (e: SQLException) {
+                logger.debug(e) { "Can't validate connection" }
+                false
+            }
+        }
+
+        private fun reset(connection: Connection): Boolean {
+            return try {
+                if (!connection.autoCommit) {
+                    connection.rollback()
+                    connection.autoCommit = true
+                }
+                connection.clearWarnings()
+                !connection.isClosed
+            } catch (e: SQLException) {
+                logger.debug(e) { "Can't reset connection" }
+                false
+            }
+        }
+    }
+}
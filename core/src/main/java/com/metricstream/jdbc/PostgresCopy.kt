@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.io.IOException
+import java.io.Reader
+import java.math.BigDecimal
+import java.sql.Connection
+import java.sql.SQLException
+import java.sql.Timestamp
+import java.time.ZonedDateTime
+import java.util.Calendar
+import org.apache.commons.codec.binary.Hex
+import org.postgresql.PGConnection
+
+/**
+ * COPY based bulk insert for PostgreSQL.  This is a separate object so that the PostgreSQL driver classes are only
+ * loaded for PostgreSQL connections.
+ */
+internal object PostgresCopy {
+    @Throws(SQLException::class)
+    fun copy(connection: Connection, sql: String, columns: Int, rows: Iterator<List<Any?>>): Long {
+        try {
+            return connection.unwrap(PGConnection::class.java).copyAPI.copyIn(sql, CsvReader(columns, rows))
+        } catch (e: IOException) {
+            throw SQLException("Can't copy rows", e)
+        }
+    }
+
+    // Formats the rows as CSV one by one while the driver reads them
+    private class CsvReader(private val columns: Int, private val rows: Iterator<List<Any?>>) : Reader() {
+        private val line = StringBuilder()
+        private var position = 0
+
+        override fun read(buffer: CharArray, offset: Int, length: Int): Int {
+            if (position == line.length) {
+                if (!rows.hasNext()) {
+                    return -1
+                }
+                line.setLength(0)
+                position = 0
+                append(BulkInsert.checkRow(rows.next(), columns))
+            }
+            val count = minOf(length, line.length - position)
+            line.getChars(position, position + count, buffer, offset)
+            position += count
+            return count
+        }
+
+        override fun close() {
+            // the rows are owned by the caller
+        }
+
+        private fun append(row: List<Any?>) {
+            row.forEachIndexed { index, value ->
+                if (index > 0) {
+                    line.append(',')
+                }
+                // null is written as an empty unquoted value, everything else is quoted
+                when (val data = if (value is SQLBuilder.Masked) value.data else value) {
+                    null -> Unit
+                    is ByteArray -> line.append("\"\\x").append(Hex.encodeHex(data)).append('"')
+                    else -> quote(format(data))
+                }
+            }
+            line.append('\n')
+        }
+
+        // Returns the text representation of a value which PostgreSQL parses like the driver binds the value
+        private fun format(value: Any): String {
+            return when (value) {
+                is BigDecimal -> value.toPlainString()
+                is LongString -> value.data
+                // java.sql.Date, Time and Timestamp use the JDBC escape format, which PostgreSQL accepts
+                is java.sql.Date, is java.sql.Time, is Timestamp -> value.toString()
+                is java.util.Date -> Timestamp(value.time).toString()
+                is Calendar -> value.toInstant().atZone(value.timeZone.toZoneId()).toOffsetDateTime().toString()
+                // The ISO format of the other java.time classes is accepted, but not the zone id
+                is ZonedDateTime -> value.toOffsetDateTime().toString()
+                is Collection<*>, is Map<*, *>, is Array<*> -> {
+                    throw IllegalArgumentException("Values of type ${value.javaClass.name} are not supported by COPY")
+                }
+                else -> value.toString()
+            }
+        }
+
+        private fun quote(value: String) {
+            line.append('"')
+            value.forEach { c ->
+                if (c == '"') {
+                    line.append('"')
+                }
+                line.append(c)
+            }
+            line.append('"')
+        }
+    }
+}
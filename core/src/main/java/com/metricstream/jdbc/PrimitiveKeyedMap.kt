@@ -0,0 +1,332 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+/**
+ * Open addressing hash map with primitive long keys
+ *
+ * Keys are stored unboxed in a LongArray and probed linearly, and values are stored in a parallel array.  Compared to a
+ * `HashMap<Long, V>`, this saves the key objects and the map entries (i.e. about 50 bytes per entry).  The map does not
+ * allow concurrent modification, but can be shared between threads once it is no longer modified.
+ */
+class LongKeyedMap<V> @JvmOverloads constructor(expectedSize: Int = DEFAULT_EXPECTED_SIZE) {
+    fun interface EntryConsumer<V> {
+        fun accept(key: Long, value: V)
+    }
+
+    // 0 marks a free slot.  The key 0 is therefore stored separately.
+    private var keys: LongArray
+    private var values: Array<Any?>
+    private var hasZeroKey = false
+    private var zeroValue: Any? = null
+    private var mask: Int
+    private var threshold: Int
+
+    /**
+     * The number of entries in the map
+     */
+    var size: Int = 0
+        private set
+
+    init {
+        require(expectedSize >= 0) { "The expected size must not be negative" }
+        val capacity = tableSize(expectedSize)
+        keys = LongArray(capacity)
+        values = arrayOfNulls(capacity)
+        mask = capacity - 1
+        threshold = (capacity * LOAD_FACTOR).toInt()
+    }
+
+    fun isEmpty(): Boolean = size == 0
+
+    fun containsKey(key: Long): Boolean {
+        return if (key == 0L) hasZeroKey else keys[slot(key)] != 0L
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(key: Long): V? {
+        return if (key == 0L) zeroValue as V? else values[slot(key)] as V?
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun getOrDefault(key: Long, defaultValue: V): V {
+        return if (containsKey(key)) get(key) as V else defaultValue
+    }
+
+    /**
+     * Associates value with key.
+     * @return the previous value, or null if the key was not present
+     */
+    fun put(key: Long, value: V): V? {
+        val previous = get(key)
+        add(key, value, true)
+        return previous
+    }
+
+    /**
+     * Adds an entry unless the key is already present.
+     * @return true if the entry was added, false if the key was already present
+     */
+    fun putIfAbsent(key: Long, value: V): Boolean {
+        return add(key, value, false)
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun forEach(action: EntryConsumer<V>) {
+        if (hasZeroKey) {
+            action.accept(0L, zeroValue as V)
+        }
+        for (index in keys.indices) {
+            if (keys[index] != 0L) {
+                action.accept(keys[index], values[index] as V)
+            }
+        }
+    }
+
+    /**
+     * Returns all keys in unspecified order.
+     */
+    fun keys(): LongArray {
+        val result = LongArray(size)
+        var count = 0
+        if (hasZeroKey) {
+            result[count++] = 0L
+        }
+        keys.forEach { if (it != 0L) result[count++] = it }
+        return result
+    }
+
+    private fun add(key: Long, value: V, replace: Boolean): Boolean {
+        if (key == 0L) {
+            return addZero(value, replace)
+        }
+        val index = slot(key)
+        if (keys[index] != 0L) {
+            if (replace) {
+                values[index] = value
+            }
+            return false
+        }
+        keys[index] = key
+        values[index] = value
+        if (++size > threshold) {
+            rehash()
+        }
+        return true
+    }
+
+    private fun addZero(value: V, replace: Boolean): Boolean {
+        val added = !hasZeroKey
+        if (added || replace) {
+            zeroValue = value
+        }
+        if (added) {
+            hasZeroKey = true
+            size++
+        }
+        return added
+    }
+
+    // Returns the slot of key, or the free slot where it would be inserted
+    private fun slot(key: Long): Int {
+        var index = mix(key.toInt() xor (key ushr Int.SIZE_BITS).toInt()) and mask
+        while (keys[index] != 0L && keys[index] != key) {
+            index = (index + 1) and mask
+        }
+        return index
+    }
+
+    private fun rehash() {
+        val oldKeys = keys
+        val oldValues = values
+        keys = LongArray(oldKeys.size * 2)
+        values = arrayOfNulls(oldKeys.size * 2)
+        mask = keys.size - 1
+        threshold = (keys.size * LOAD_FACTOR).toInt()
+        for (index in oldKeys.indices) {
+            if (oldKeys[index] != 0L) {
+                val slot = slot(oldKeys[index])
+                keys[slot] = oldKeys[index]
+                values[slot] = oldValues[index]
+            }
+        }
+    }
+
+    override fun toString(): String {
+        val sb = StringBuilder("{")
+        forEach { key, value -> sb.append(if (sb.length > 1) ", " else "").append(key).append('=').append(value) }
+        return sb.append('}').toString()
+    }
+}
+
+/**
+ * Open addressing hash map with primitive int keys
+ *
+ * This is the int variant of LongKeyedMap.
+ */
+class IntKeyedMap<V> @JvmOverloads constructor(expectedSize: Int = DEFAULT_EXPECTED_SIZE) {
+    fun interface EntryConsumer<V> {
+        fun accept(key: Int, value: V)
+    }
+
+    // 0 marks a free slot.  The key 0 is therefore stored separately.
+    private var keys: IntArray
+    private var values: Array<Any?>
+    private var hasZeroKey = false
+    private var zeroValue: Any? = null
+    private var mask: Int
+    private var threshold: Int
+
+    /**
+     * The number of entries in the map
+     */
+    var size: Int = 0
+        private set
+
+    init {
+        require(expectedSize >= 0) { "The expected size must not be negative" }
+        val capacity = tableSize(expectedSize)
+        keys = IntArray(capacity)
+        values = arrayOfNulls(capacity)
+        mask = capacity - 1
+        threshold = (capacity * LOAD_FACTOR).toInt()
+    }
+
+    fun isEmpty(): Boolean = size == 0
+
+    fun containsKey(key: Int): Boolean {
+        return if (key == 0) hasZeroKey else keys[slot(key)] != 0
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(key: Int): V? {
+        return if (key == 0) zeroValue as V? else values[slot(key)] as V?
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun getOrDefault(key: Int, defaultValue: V): V {
+        return if (containsKey(key)) get(key) as V else defaultValue
+    }
+
+    /**
+     * Associates value with key.
+     * @return the previous value, or null if the key was not present
+     */
+    fun put(key: Int, value: V): V? {
+        val previous = get(key)
+        add(key, value, true)
+        return previous
+    }
+
+    /**
+     * Adds an entry unless the key is already present.
+     * @return true if the entry was added, false if the key was already present
+     */
+    fun putIfAbsent(key: Int, value: V): Boolean {
+        return add(key, value, false)
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun forEach(action: EntryConsumer<V>) {
+        if (hasZeroKey) {
+            action.accept(0, zeroValue as V)
+        }
+        for (index in keys.indices) {
+            if (keys[index] != 0) {
+                action.accept(keys[index], values[index] as V)
+            }
+        }
+    }
+
+    /**
+     * Returns all keys in unspecified order.
+     */
+    fun keys(): IntArray {
+        val result = IntArray(size)
+        var count = 0
+        if (hasZeroKey) {
+            result[count++] = 0
+        }
+        keys.forEach { if (it != 0) result[count++] = it }
+        return result
+    }
+
+    private fun add(key: Int, value: V, replace: Boolean): Boolean {
+        if (key == 0) {
+            return addZero(value, replace)
+        }
+        val index = slot(key)
+        if (keys[index] != 0) {
+            if (replace) {
+                values[index] = value
+            }
+            return false
+        }
+        keys[index] = key
+        values[index] = value
+        if (++size > threshold) {
+            rehash()
+        }
+        return true
+    }
+
+    private fun addZero(value: V, replace: Boolean): Boolean {
+        val added = !hasZeroKey
+        if (added || replace) {
+            zeroValue = value
+        }
+        if (added) {
+            hasZeroKey = true
+            size++
+        }
+        return added
+    }
+
+    // Returns the slot of key, or the free slot where it would be inserted
+    private fun slot(key: Int): Int {
+        var index = mix(key) and mask
+        while (keys[index] != 0 && keys[index] != key) {
+            index = (index + 1) and mask
+        }
+        return index
+    }
+
+    private fun rehash() {
+        val oldKeys = keys
+        val oldValues = values
+        keys = IntArray(oldKeys.size * 2)
+        values = arrayOfNulls(oldKeys.size * 2)
+        mask = keys.size - 1
+        threshold = (keys.size * LOAD_FACTOR).toInt()
+        for (index in oldKeys.indices) {
+            if (oldKeys[index] != 0) {
+                val slot = slot(oldKeys[index])
+                keys[slot] = oldKeys[index]
+                values[slot] = oldValues[index]
+            }
+        }
+    }
+
+    override fun toString(): String {
+        val sb = StringBuilder("{")
+        forEach { key, value -> sb.append(if (sb.length > 1) ", " else "").append(key).append('=').append(value) }
+        return sb.append('}').toString()
+    }
+}
+
+private const val DEFAULT_EXPECTED_SIZE = 16
+private const val LOAD_FACTOR = 0.75
+
+// Returns the smallest power of 2 which can hold expectedSize entries without exceeding the load factor
+private fun tableSize(expectedSize: Int): Int {
+    val needed = maxOf(2L, (expectedSize / LOAD_FACTOR).toLong() + 1)
+    require(needed <= 1 shl 30) { "The expected size is too large" }
+    return Integer.highestOneBit((needed - 1).toInt()) shl 1
+}
+
+// Spreads the bits of the key such that sequential keys (e.g. IDs) do not form long probe sequences
+private fun mix(key: Int): Int {
+    val h = key * -0x61c88647
+    return h xor (h ushr 16)
+}
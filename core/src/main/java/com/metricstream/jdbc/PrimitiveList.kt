@@ -0,0 +1,175 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.util.BitSet
+
+/**
+ * Growable list of primitive values read from a single column
+ *
+ * The values are stored unboxed in a primitive array (i.e. 4 or 8 bytes per value instead of about 16 to 24 bytes for
+ * a boxed value plus its list reference).  SQL NULL values are stored as 0 and additionally recorded in a bitmap which
+ * is only allocated once the first NULL value is added.
+ */
+sealed class PrimitiveList {
+    /**
+     * The number of values in the list
+     */
+    var size: Int = 0
+        protected set
+
+    private var nulls: BitSet? = null
+
+    /**
+     * The number of SQL NULL values in the list
+     */
+    val nullCount: Int
+        get() = nulls?.cardinality() ?: 0
+
+    fun isEmpty(): Boolean = size == 0
+
+    /**
+     * Returns whether the value at index was SQL NULL.
+     */
+    fun isNull(index: Int): Boolean {
+        checkIndex(index)
+        return nulls?.get(index) == true
+    }
+
+    protected fun markNull() {
+        (nulls ?: BitSet().also { nulls = it }).set(size)
+    }
+
+    protected fun checkIndex(index: Int) {
+        if (index < 0 || index >= size) {
+            throw IndexOutOfBoundsException("Index $index out of bounds for length $size")
+        }
+    }
+
+    // Returns the capacity needed to add one more value to an array of the given capacity
+    protected fun grow(capacity: Int): Int {
+        return if (size < capacity) capacity else maxOf(DEFAULT_CAPACITY, capacity + (capacity shr 1))
+    }
+
+    protected fun forEachNull(action: (Int) -> Unit) {
+        val bits = nulls ?: return
+        var index = bits.nextSetBit(0)
+        while (index >= 0) {
+            action(index)
+            index = bits.nextSetBit(index + 1)
+        }
+    }
+
+    companion object {
+        internal const val DEFAULT_CAPACITY = 16
+    }
+}
+
+class IntList @JvmOverloads constructor(initialCapacity: Int = PrimitiveList.DEFAULT_CAPACITY) : PrimitiveList() {
+    private var values = IntArray(initialCapacity)
+
+    fun add(value: Int) {
+        val capacity = grow(values.size)
+        if (capacity != values.size) {
+            values = values.copyOf(capacity)
+        }
+        values[size++] = value
+    }
+
+    fun addNull() {
+        markNull()
+        add(0)
+    }
+
+    operator fun get(index: Int): Int {
+        checkIndex(index)
+        return values[index]
+    }
+
+    /**
+     * Returns the values as an array.  SQL NULL values are returned as nullValue.
+     */
+    @JvmOverloads
+    fun toIntArray(nullValue: Int = 0): IntArray {
+        val array = values.copyOf(size)
+        if (nullValue != 0) {
+            forEachNull { array[it] = nullValue }
+        }
+        return array
+    }
+
+    override fun toString(): String = toIntArray().contentToString()
+}
+
+class LongList @JvmOverloads constructor(initialCapacity: Int = PrimitiveList.DEFAULT_CAPACITY) : PrimitiveList() {
+    private var values = LongArray(initialCapacity)
+
+    fun add(value: Long) {
+        val capacity = grow(values.size)
+        if (capacity != values.size) {
+            values = values.copyOf(capacity)
+        }
+        values[size++] = value
+    }
+
+    fun addNull() {
+        markNull()
+        add(0L)
+    }
+
+    operator fun get(index: Int): Long {
+        checkIndex(index)
+        return values[index]
+    }
+
+    /**
+     * Returns the values as an array.  SQL NULL values are returned as nullValue.
+     */
+    @JvmOverloads
+    fun toLongArray(nullValue: Long = 0L): LongArray {
+        val array = values.copyOf(size)
+        if (nullValue != 0L) {
+            forEachNull { array[it] = nullValue }
+        }
+        return array
+    }
+
+    override fun toString(): String = toLongArray().contentToString()
+}
+
+class DoubleList @JvmOverloads constructor(initialCapacity: Int = PrimitiveList.DEFAULT_CAPACITY) : PrimitiveList() {
+    private var values = DoubleArray(initialCapacity)
+
+    fun add(value: Double) {
+        val capacity = grow(values.size)
+        if (capacity != values.size) {
+            values = values.copyOf(capacity)
+        }
+        values[size++] = value
+    }
+
+    fun addNull() {
+        markNull()
+        add(0.0)
+    }
+
+    operator fun get(index: Int): Double {
+        checkIndex(index)
+        return values[index]
+    }
+
+    /**
+     * Returns the values as an array.  SQL NULL values are returned as nullValue (which can also be NaN).
+     */
+    @JvmOverloads
+    fun toDoubleArray(nullValue: Double = 0.0): DoubleArray {
+        val array = values.copyOf(size)
+        if (nullValue.compareTo(0.0) != 0) {
+            forEachNull { array[it] = nullValue }
+        }
+        return array
+    }
+
+    override fun toString(): String = toDoubleArray().contentToString()
+}
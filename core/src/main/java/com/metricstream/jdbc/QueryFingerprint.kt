@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Stable identity of a SQL statement
+ *
+ * The fingerprint is computed from a normalized form of the statement: comments are removed, whitespace is collapsed,
+ * keywords and unquoted identifiers are lower-cased, string and numeric literals are replaced by `?`, and lists of
+ * placeholders (e.g. the expansion of a collection parameter) are collapsed into a single `?`.  Statements which only
+ * differ in these aspects therefore share the same fingerprint, which makes it usable as a metrics key.
+ */
+class QueryFingerprint private constructor(
+    /**
+     * The normalized statement
+     */
+    val normalizedSql: String
+) {
+    /**
+     * 64-bit FNV-1a hash of the normalized statement as 16 hex digits
+     */
+    val id: String = java.lang.Long.toHexString(hash(normalizedSql)).padStart(16, '0')
+
+    override fun equals(other: Any?): Boolean {
+        return other is QueryFingerprint && other.normalizedSql == normalizedSql
+    }
+
+    override fun hashCode(): Int {
+        return normalizedSql.hashCode()
+    }
+
+    override fun toString(): String {
+        return id
+    }
+
+    companion object {
+        private const val CACHE_SIZE = 4096
+        private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL
+        private const val FNV_PRIME = 0x100000001b3L
+        private val cache = ConcurrentHashMap<String, QueryFingerprint>()
+        private val placeholderList = Regex("""\?(\s?,\s?\?)+""")
+
+        /**
+         * Returns the fingerprint of a statement.  Fingerprints of recently used statements are cached.
+         * @param sql The SQL statement
+         * @return the fingerprint
+         */
+        @JvmStatic
+        fun of(sql: String): QueryFingerprint {
+            cache[sql]?.let { return it }
+            val fingerprint = QueryFingerprint(normalize(sql))
+            if (cache.size >= CACHE_SIZE) {
+                cache.clear()
+            }
+            cache[sql] = fingerprint
+            return fingerprint
+        }
+
+        internal fun normalize(sql: String): String {
+            val sb = StringBuilder(sql.length)
+            var pos = 0
+            while (pos < sql.length) {
+                val c = sql[pos]
+                pos = when {
+                    c == '\'' -> literal(sql, pos, sb)
+                    c == '"' -> quoted(sql, pos, sb)
+                    c == '-' && sql.startsWith("--", pos) -> space(sb, after(sql, pos, "\n", 0))
+                    c == '/' && sql.startsWith("/*", pos) -> space(sb, after(sql, pos, "*/", 2))
+                    c.isWhitespace() -> space(sb, pos + 1)
+                    c.isDigit() && (sb.isEmpty() || !SQLTokenizer.isWordChar(sb[sb.length - 1])) -> number(sql, pos, sb)
+                    else -> {
+                        sb.append(c.lowercaseChar())
+                        pos + 1
+                    }
+                }
+            }
+            return placeholderList.replace(sb.trim(), "?")
+        }
+
+        // Replaces the string literal starting at pos by "?" and returns the position after it
+        private fun literal(sql: String, pos: Int, sb: StringBuilder): Int {
+            var end = pos
+            do {
+                // doubled quotes (e.g. 'it''s') continue the literal
+                end = sql.indexOf('\'', end + 1).let { if (it == -1) sql.length else it + 1 }
+            } while (end < sql.length && sql[end] == '\'')
+            sb.append('?')
+            return end
+        }
+
+        // Copies the quoted identifier starting at pos unchanged and returns the position after it
+        private fun quoted(sql: String, pos: Int, sb: StringBuilder): Int {
+            val end = sql.indexOf('"', pos + 1).let { if (it == -1) sql.length else it + 1 }
+            sb.append(sql, pos, end)
+            return end
+        }
+
+        // Replaces the numeric literal starting at pos by "?" and returns the position after it
+        private fun number(sql: String, pos: Int, sb: StringBuilder): Int {
+            var end = pos
+            while (end < sql.length && (sql[end].isDigit() || sql[end] == '.')) {
+                end++
+            }
+            sb.append('?')
+            return end
+        }
+
+        // Returns the position of the terminator found after pos plus skip, or the end of sql if there is none
+        private fun after(sql: String, pos: Int, terminator: String, skip: Int): Int {
+            val end = sql.indexOf(terminator, pos + 2)
+            return if (end == -1) sql.length else end + skip
+        }
+
+        // Appends a single space unless the normalized statement already ends with one and returns end
+        private fun space(sb: StringBuilder, end: Int): Int {
+            if (sb.isNotEmpty() && sb[sb.length - 1] != ' ') {
+                sb.append(' ')
+            }
+            return end
+        }
+
+        private fun hash(s: String): Long {
+            var h = FNV_OFFSET_BASIS
+            for (c in s) {
+                h = (h xor c.code.toLong()) * FNV_PRIME
+            }
+            return h
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.Connection
+import java.sql.SQLException
+import java.sql.SQLTimeoutException
+import java.time.Duration
+import java.util.Optional
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+import java.util.function.Supplier
+import com.metricstream.jdbc.ConnectionProvider.Intent
+
+/**
+ * Group of independent queries which are executed concurrently
+ *
+ * Every query is added together with the action which executes it and returns a Query object from which the result
+ * can be read after `run` returned.  `run` borrows at most `parallelism` connections from the ConnectionProvider and
+ * executes the queries on the executor used by the asynchronous SQLBuilder methods.  Every borrowed connection is used
+ * for several queries one after another, so a group never holds more connections than its parallelism no matter how many
+ * queries it contains.  The connections are requested as READ (e.g. from a replica, see `RoutingConnectionProvider`) if
+ * all queries of the group are reads, and as WRITE otherwise.
+ * <pre>`QueryGroup group = SQLBuilder.parallel(4).withDeadline(Duration.ofSeconds(2));
+ * QueryGroup.Query<List<String>> names = group.getList(new SQLBuilder("select name from users"), rs -> rs.getString(1));
+ * QueryGroup.Query<Integer> count = group.add(new SQLBuilder("select count(*) from orders"), Intent.READ, (sb, c) -> sb.getInt(c, 1, 0));
+ * group.run();
+ * render(names.get(), count.get());
+ * `</pre>
+ */
+class QueryGroup internal constructor(
+    /**
+     * The maximal number of queries which are executed at the same time, which is also the maximal number of
+     * connections borrowed from the ConnectionProvider
+     */
+    val parallelism: Int
+) {
+    private val queries = mutableListOf<Query<*>>()
+    private var deadline: Duration? = null
+    private var started = false
+
+    init {
+        require(parallelism > 0) { "The parallelism must be positive" }
+    }
+
+    /**
+     * Executes a query using a connection borrowed by the QueryGroup
+     */
+    fun interface Action<T> {
+        @Throws(SQLException::class)
+        fun execute(sqlBuilder: SQLBuilder, connection: Connection): T
+    }
+
+    /**
+     * The result of a query of the group
+     */
+    class Query<T> internal constructor(
+        internal val sqlBuilder: SQLBuilder,
+        internal val intent: Intent,
+        private val action: Action<T>
+    ) : Supplier<T> {
+        @Volatile
+        private var done = false
+        private var result: T? = null
+        internal val handle = CancelHandle()
+
+        // The handle is bound to the executing thread instead of being set for sqlBuilder, so that the SQLBuilder
+        // object is left unchanged even if the query is still running when `run` gave up waiting for it
+        @Throws(SQLException::class)
+        internal fun execute(connection: Connection) {
+            result = handle.bind { action.execute(sqlBuilder, connection) }
+            done = true
+        }
+
+        /**
+         * Returns the result of the query
+         * @throws IllegalStateException if the query was not executed successfully
+         */
+        @Suppress("UNCHECKED_CAST")
+        override fun get(): T {
+            check(done) { "The query was not executed" }
+            return result as T
+        }
+    }
+
+    /**
+     * Sets the maximal time `run` waits for the queries.  Queries which are still running when the deadline is reached
+     * are cancelled, and queries which did not start yet are skipped.
+     * @param deadline The maximal duration of `run`
+     * @return the QueryGroup object
+     */
+    fun withDeadline(deadline: Duration): QueryGroup {
+        require(!deadline.isNegative && !deadline.isZero) { "The deadline must be positive" }
+        this.deadline = deadline
+        return this
+    }
+
+    /**
+     * Adds a query to the group.  The action may execute any statement and therefore needs a connection for writes.
+     * @param sqlBuilder The SQLBuilder object of the query.  It must not be modified until `run` returned
+     * @param action The action which executes the query
+     * @return the Query object which provides the result after `run` returned
+     */
+    fun <T> add(sqlBuilder: SQLBuilder, action: Action<T>): Query<T> {
+        return add(sqlBuilder, Intent.WRITE, action)
+    }
+
+    /**
+     * Adds a query to the group.
+     * @param sqlBuilder The SQLBuilder object of the query.  It must not be modified until `run` returned
+     * @param intent The intent of the statements executed by action, i.e. READ if action only reads
+     * @param action The action which executes the query
+     * @return the Query object which provides the result after `run` returned
+     */
+    fun <T> add(sqlBuilder: SQLBuilder, intent: Intent, action: Action<T>): Query<T> {
+        check(!started) { "Queries must be added before the group is run" }
+        return Query(sqlBuilder, intent, action).also { queries.add(it) }
+    }
+
+    /**
+     * Adds a query which returns a list of objects generated from its ResultSet.  See `SQLBuilder.getList`.
+     */
+    fun <T> getList(sqlBuilder: SQLBuilder, rowMapper: SQLBuilder.RowMapper<T>): Query<List<T>> {
+        return add(sqlBuilder, Intent.READ) { sb, connection -> sb.getList(connection, rowMapper) }
+    }
+
+    /**
+     * Adds a query which returns an object generated from the first row of its ResultSet.  See `SQLBuilder.getSingle`.
+     */
+    fun <T : Any> getSingle(sqlBuilder: SQLBuilder, rowMapper: SQLBuilder.RowMapper<T?>): Query<Optional<T>> {
+        return add(sqlBuilder, Intent.READ) { sb, connection -> sb.getSingle(connection, rowMapper) }
+    }
+
+    /**
+     * Adds a query which returns a map of objects generated from its ResultSet.  See `SQLBuilder.getMap`.
+     */
+    fun <K, V> getMap(sqlBuilder: SQLBuilder, rowMapper: SQLBuilder.RowMapper<Map.Entry<K, V?>>): Query<Map<K, V?>> {
+        return add(sqlBuilder, Intent.READ) { sb, connection -> sb.getMap(connection, rowMapper) }
+    }
+
+    /**
+     * Executes all queries of the group and waits until they are completed.  If a query fails, the running queries are
+     * cancelled, the remaining queries are skipped, and the exception of the first failed query is thrown.  `run` always
+     * waits until all borrowed connections were given back, also if the deadline was reached, so an action which does
+     * not react to the cancellation of its statement delays the return of `run`.
+     * @throws SQLException the exception thrown by the first failed query, or a SQLTimeoutException if the deadline was
+     * reached
+     */
+    @Throws(SQLException::class)
+    fun run() {
+        check(!started) { "A query group can only be run once" }
+        started = true
+        if (queries.isEmpty()) {
+            return
+        }
+        val pending = ConcurrentLinkedQueue(queries)
+        val failure = AtomicReference<Throwable>()
+        val workers = minOf(parallelism, queries.size)
+        val finished = CountDownLatch(workers)
+        // Every connection is used for several queries.  The intent is resolved for the calling thread, so that the
+        // group reads its own writes and the caller's following reads see the writes of the group.
+        val intent = ConnectionScope.intent(if (queries.all { it.intent == Intent.READ }) Intent.READ else Intent.WRITE)
+        val worker = Runnable {
+            try {
+                if (failure.get() == null) {
+                    SQLBuilder.delegate.getConnection(intent).use { connection ->
+                        while (failure.get() == null) {
+                            val query = pending.poll() ?: break
+                            query.execute(connection)
+                        }
+                    }
+                }
+            } catch (e: Throwable) {
+                fail(failure, e)
+            } finally {
+                finished.countDown()
+            }
+        }
+        repeat(workers) {
+            try {
+                SQLBuilder.asyncExecutor.execute(worker)
+            } catch (e: RejectedExecutionException) {
+                failure.compareAndSet(null, e)
+                finished.countDown()
+            }
+        }
+        try {
+            val timeout = deadline
+            if (timeout == null) {
+                finished.await()
+            } else if (!finished.await(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                fail(failure, SQLTimeoutException("The query group exceeded its deadline of $timeout"))
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            fail(failure, e)
+        }
+        awaitUninterruptibly(finished)
+        when (val e = failure.get()) {
+            null -> return
+            is SQLException, is RuntimeException, is Error -> throw e
+            else -> throw SQLException(e)
+        }
+    }
+
+    // Records the first failure and cancels the running queries
+    private fun fail(failure: AtomicReference<Throwable>, e: Throwable) {
+        if (failure.compareAndSet(null, e)) {
+            queries.forEach { it.handle.cancel() }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_PARALLELISM = 4
+
+        // Waits until all workers finished, i.e. until all connections were given back, and keeps the interrupt status
+        private fun awaitUninterruptibly(finished: CountDownLatch) {
+            var interrupted = false
+            while (true) {
+                try {
+                    finished.await()
+                    break
+                } catch (e: InterruptedException) {
+                    interrupted = true
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt()
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.util.ServiceLoader
+import java.util.concurrent.CopyOnWriteArrayList
+import io.github.oshai.kotlinlogging.KotlinLogging
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Registry of the QueryListener objects
+ *
+ * The listeners found using ServiceLoader are registered when this object is first used.  If no listener is registered,
+ * the JDBC provider does not measure anything and does not allocate any instrumentation objects.
+ */
+object QueryInstrumentation {
+    private val listeners = CopyOnWriteArrayList<QueryListener>(ServiceLoader.load(QueryListener::class.java).toList())
+
+    @Volatile
+    private var enabled = listeners.isNotEmpty()
+
+    @JvmStatic
+    fun addListener(listener: QueryListener) {
+        listeners.add(listener)
+        enabled = true
+    }
+
+    @JvmStatic
+    fun removeListener(listener: QueryListener) {
+        listeners.remove(listener)
+        enabled = listeners.isNotEmpty()
+    }
+
+    /**
+     * Returns a new probe for a statement execution, or null if no listener is registered.
+     */
+    internal fun probe(sqlBuilder: SQLBuilder): QueryProbe? {
+        return if (enabled) QueryProbe(sqlBuilder) else null
+    }
+
+    internal fun publish(event: QueryEvent) {
+        for (listener in listeners) {
+            try {
+                listener.onQuery(event)
+            } catch (e: Exception) {
+                logger.warn(e) { "QueryListener ${listener.javaClass.name} failed" }
+            }
+        }
+    }
+}
+
+/**
+ * Collects the timings of a single statement execution.  The phases must be reported in order; phases which are not
+ * reported take no time.
+ */
+internal class QueryProbe(private val sqlBuilder: SQLBuilder) {
+    private val start = System.nanoTime()
+    private var sql: String? = null
+    private var arguments: List<Any?> = emptyList()
+    private var cached = false
+    private var prepared = start
+    private var bound = start
+    private var executed = start
+    private var rows = -1L
+
+    fun prepared(sql: String, arguments: List<Any?>, cached: Boolean) {
+        this.sql = sql
+        this.arguments = arguments
+        this.cached = cached
+        prepared = System.nanoTime()
+        bound = prepared
+        executed = prepared
+    }
+
+    fun bound() {
+        bound = System.nanoTime()
+        executed = bound
+    }
+
+    fun executed() {
+        executed = System.nanoTime()
+    }
+
+    fun updated(count: Int) {
+        executed()
+        rows = count.toLong()
+    }
+
+    fun fetched(rows: Long) {
+        this.rows = rows
+    }
+
+    fun finish(exception: Throwable?) {
+        val end = System.nanoTime()
+        if (sql == null) {
+            // failed before the statement was prepared (e.g. while expanding the placeholders)
+            prepared = end
+            bound = end
+            executed = end
+        }
+        val statement = sql ?: sqlBuilder.statement.toString()
+        QueryInstrumentation.publish(
+            QueryEvent(
+                QueryFingerprint.of(statement),
+                statement,
+                arguments,
+                prepared - start,
+                bound - prepared,
+                executed - bound,
+                end - executed,
+                rows,
+                cached,
+                exception
+            )
+        )
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+/**
+ * Instrumentation SPI for the JDBC provider
+ *
+ * Implementations are discovered like ConnectionProvider using ServiceLoader (i.e. by listing the implementation class
+ * in `META-INF/services/com.metricstream.jdbc.QueryListener`) or registered using `QueryInstrumentation.addListener`.
+ * Listeners are called synchronously on the thread which executed the query and therefore should only record the
+ * event (e.g. in a histogram).  Exceptions thrown by a listener are logged and otherwise ignored.
+ */
+fun interface QueryListener {
+    fun onQuery(event: QueryEvent)
+}
+
+/**
+ * Timings and outcome of a single statement execution.  All durations are in nanoseconds.
+ */
+class QueryEvent internal constructor(
+    /**
+     * The fingerprint of the statement
+     */
+    val fingerprint: QueryFingerprint,
+    /**
+     * The statement as sent to the database, i.e. with expanded placeholders
+     */
+    val sql: String,
+    /**
+     * The values bound to the placeholders of sql.  These are not public because they can contain sensitive data
+     */
+    internal val arguments: List<Any?>,
+    /**
+     * The time used for expanding and preparing the statement (or taking it from the StatementCache)
+     */
+    val prepareNanos: Long,
+    /**
+     * The time used for binding the parameters
+     */
+    val bindNanos: Long,
+    /**
+     * The time used for executing the statement
+     */
+    val executeNanos: Long,
+    /**
+     * The time used for reading the rows.  This is close to 0 for updates and for statements whose ResultSet is handed
+     * to the caller (i.e. `getResultSet`, `stream` and `execute` with key columns)
+     */
+    val fetchNanos: Long,
+    /**
+     * The number of rows read, the update count for updates, or -1 if unknown
+     */
+    val rows: Long,
+    /**
+     * Whether the statement was reused from the StatementCache
+     */
+    val cached: Boolean,
+    /**
+     * The exception which terminated the execution, or null if it succeeded
+     */
+    val exception: Throwable?
+) {
+    val totalNanos: Long
+        get() = prepareNanos + bindNanos + executeNanos + fetchNanos
+
+    val failed: Boolean
+        get() = exception != null
+
+    override fun toString(): String {
+        return "QueryEvent(fingerprint=$fingerprint, rows=$rows, totalNanos=$totalNanos, failed=$failed)"
+    }
+}
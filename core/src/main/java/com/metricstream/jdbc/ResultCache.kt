@@ -0,0 +1,272 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.Connection
+import java.sql.SQLException
+import java.time.Duration
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Cache for the mapped results of read-mostly queries
+ *
+ * Only SQLBuilder objects which opted in using `cached(ttl, tags)` use the cache.  Their results are keyed by the
+ * expanded SQL statement, the argument values, the kind of result (e.g. `getList` or `getMap`), the row mapper
+ * object, and the scope of the result.  Row mappers are compared using `equals`, i.e. by identity for lambdas, so
+ * lambdas capturing different values never share results, and callers should keep row mappers which capture values in
+ * a field to share them.  The scope is set using `withCacheScope`, or else is the database session (i.e. the physical
+ * connection behind a pool proxy) of the query, so that results containing uncommitted changes or read from another
+ * database are not shared.  The connection-less methods share one scope outside of `inTransaction`.  Cached lists
+ * and maps are shared between all callers and are returned as unmodifiable views.
+ *
+ * The cache holds results with a total weight of at most `maxWeight`, where the weight of a list or map is its size
+ * and the weight of a single value is 1.  The least recently used results are evicted when the limit is exceeded.
+ * Results expire after their time-to-live, or when one of their tags is invalidated.  Executing an INSERT, UPDATE,
+ * DELETE, MERGE or TRUNCATE statement using SQLBuilder invalidates the tag of the modified table (with and without its
+ * schema).  The tables modified within `inTransaction` are invalidated again when the transaction is committed or rolled
+ * back, because other sessions could have cached their previous state in the meantime.  A result is not cached if one
+ * of its tags was invalidated while it was queried, and writes to other tables do not affect it.  Tags are
+ * case-insensitive.
+ */
+object ResultCache {
+    internal data class Key(
+        val kind: String,
+        val sql: String,
+        val args: List<Any?>,
+        val mapper: Any,
+        val extra: Any?,
+        val scope: Any?
+    ) {
+        companion object {
+            fun of(sqlBuilder: SQLBuilder, kind: String, rowMapper: Any, extra: Any?, scope: Any? = null): Key {
+                val expanded: MutableList<Any?> = mutableListOf()
+                val sql = sqlBuilder.interpolate(SQLBuilder.Mode.EXPAND_AND_SQL, expanded)
+                // Masked values do not implement equals
+                val args = expanded.map { if (it is SQLBuilder.Masked) it.data else it }
+                return Key(kind, sql, args, rowMapper, extra, scope)
+            }
+        }
+    }
+
+    internal class Policy(val ttl: Duration, tags: Array<out String>) {
+        val tags: Set<String> = tags.mapTo(HashSet()) { it.lowercase() }
+    }
+
+    private class Entry(val value: Any?, val tags: Set<String>, val expires: Long, val weight: Long)
+
+    const val DEFAULT_MAX_WEIGHT = 100_000L
+    private const val TAG_STRIPES = 64
+
+    // All entries in least recently used order.  Guarded by synchronizing on entries.
+    private val entries = LinkedHashMap<Key, Entry>(16, 0.75f, true)
+    private var weight = 0L
+
+    // Results computed concurrently with an invalidation of one of their tags are not cached afterward.  Invalidations
+    // and writes increment the generation of the stripe of each of their tags, while clear and writes to an unknown
+    // table increment the generation of all tags.
+    private val generation = AtomicLong()
+    private val tagGenerations = AtomicLongArray(TAG_STRIPES)
+
+    @Volatile
+    private var limit = DEFAULT_MAX_WEIGHT
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+    private val evictionCount = AtomicLong()
+    private val writeStatement = Regex(
+        """^\s*(?:insert\s+into|update|delete\s+from|delete|merge\s+into|truncate\s+table|replace\s+into)\s+([\w$#".]+)""",
+        RegexOption.IGNORE_CASE
+    )
+
+    /**
+     * The maximal total weight of the cached results.  A value of 0 disables the cache and removes all results.
+     */
+    @JvmStatic
+    var maxWeight: Long
+        get() = limit
+        set(value) {
+            require(value >= 0) { "The maximal weight must not be negative" }
+            limit = value
+            synchronized(entries) { evict() }
+        }
+
+    /**
+     * The number of results returned from the cache
+     */
+    @JvmStatic
+    val hits: Long
+        get() = hitCount.get()
+
+    /**
+     * The number of results which had to be queried
+     */
+    @JvmStatic
+    val misses: Long
+        get() = missCount.get()
+
+    /**
+     * The number of results which were removed because the cache exceeded its maximal weight
+     */
+    @JvmStatic
+    val evictions: Long
+        get() = evictionCount.get()
+
+    /**
+     * The ratio of hits to all lookups, or 0 if there was no lookup
+     */
+    @JvmStatic
+    val hitRatio: Double
+        get() {
+            val hits = hitCount.get()
+            val total = hits + missCount.get()
+            return if (total == 0L) 0.0 else hits.toDouble() / total
+        }
+
+    /**
+     * The number of cached results
+     */
+    @JvmStatic
+    val size: Int
+        get() = synchronized(entries) { entries.size }
+
+    @JvmStatic
+    fun resetStatistics() {
+        hitCount.set(0)
+        missCount.set(0)
+        evictionCount.set(0)
+    }
+
+    /**
+     * Removes all results with at least one of the tags.
+     * @param tags The tags (e.g. table names)
+     */
+    @JvmStatic
+    fun invalidate(vararg tags: String) {
+        val lowercase = tags.map { it.lowercase() }
+        synchronized(entries) {
+            lowercase.forEach { tagGenerations.incrementAndGet(stripe(it)) }
+            val iterator = entries.values.iterator()
+            while (iterator.hasNext()) {
+                val entry = iterator.next()
+                if (lowercase.any { it in entry.tags }) {
+                    weight -= entry.weight
+                    iterator.remove()
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all results.
+     */
+    @JvmStatic
+    fun clear() {
+        synchronized(entries) {
+            generation.incrementAndGet()
+            entries.clear()
+            weight = 0
+        }
+    }
+
+    /**
+     * Returns the cached result for key, or caches and returns the result of query.
+     */
+    internal fun <T> get(key: Key, policy: Policy, query: () -> T): T {
+        if (limit == 0L) {
+            return query()
+        }
+        val start = System.nanoTime()
+        val observed = generation(policy.tags)
+        synchronized(entries) {
+            val entry = entries[key]
+            if (entry != null) {
+                if (entry.expires - start > 0) {
+                    hitCount.incrementAndGet()
+                    @Suppress("UNCHECKED_CAST")
+                    return entry.value as T
+                }
+                weight -= entry.weight
+                entries.remove(key)
+            }
+        }
+        missCount.incrementAndGet()
+        val value = share(query())
+        val entryWeight = when (value) {
+            is Collection<*> -> value.size.toLong()
+            is Map<*, *> -> value.size.toLong()
+            else -> 1L
+        }.coerceAtLeast(1)
+        synchronized(entries) {
+            if (observed == generation(policy.tags)) {
+                entries.put(key, Entry(value, policy.tags, start + policy.ttl.toNanos(), entryWeight))?.let { weight -= it.weight }
+                weight += entryWeight
+                evict()
+            }
+        }
+        return value
+    }
+
+    /**
+     * Returns the default scope of results queried using connection, or of the connection-less methods if connection
+     * is null.
+     */
+    @Throws(SQLException::class)
+    internal fun scope(connection: Connection?): Any? {
+        val session = connection ?: ConnectionScope.transactional()?.connection ?: return null
+        // The physical connection behind the proxy of a connection pool
+        return if (session.isWrapperFor(Connection::class.java)) session.unwrap(Connection::class.java) else session
+    }
+
+    /**
+     * Invalidates the table modified by a SQL statement, and remembers it for the end of the current transaction.
+     */
+    internal fun written(sql: CharSequence) {
+        val transaction = ConnectionScope.transactional()
+        if (limit == 0L && transaction == null) {
+            return
+        }
+        val table = writeStatement.find(sql)?.groupValues?.get(1)?.replace("\"", "")
+        if (table == null) {
+            // Even without cached results, queries which ran concurrently with the statement must not be cached
+            generation.incrementAndGet()
+            return
+        }
+        transaction?.written?.add(table)
+        invalidateTables(listOf(table))
+    }
+
+    /**
+     * Invalidates tables (with and without their schema), e.g. the tables modified by a transaction which ended.
+     */
+    internal fun invalidateTables(tables: Collection<String>) {
+        invalidate(*tables.flatMap { listOf(it, it.substringAfterLast('.')) }.toTypedArray())
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    internal fun <T> share(value: T): T {
+        return when (value) {
+            is List<*> -> Collections.unmodifiableList(value) as T
+            is Map<*, *> -> Collections.unmodifiableMap(value) as T
+            else -> value
+        }
+    }
+
+    // Changes whenever one of tags is invalidated, because all generations only increase
+    private fun generation(tags: Set<String>): Long {
+        return generation.get() + tags.sumOf { tagGenerations.get(stripe(it)) }
+    }
+
+    private fun stripe(tag: String): Int = tag.hashCode() and (TAG_STRIPES - 1)
+
+    // Must be called while synchronized on entries
+    private fun evict() {
+        val iterator = entries.values.iterator()
+        while (weight > limit && iterator.hasNext()) {
+            weight -= iterator.next().weight
+            iterator.remove()
+            evictionCount.incrementAndGet()
+        }
+    }
+}
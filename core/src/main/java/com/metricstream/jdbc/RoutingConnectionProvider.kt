@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.Connection
+import java.sql.SQLException
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import com.metricstream.jdbc.ConnectionProvider.Intent
+import io.github.oshai.kotlinlogging.KotlinLogging
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * ConnectionProvider which routes reads to read replicas
+ *
+ * Connections for the READ intent are borrowed from the replicas, either round-robin or from the replica with the
+ * fewest open connections borrowed through this provider.  If a replica can't provide a connection, the next one is
+ * tried, and the primary is used if none of them can.  A replica which failed is skipped for the `backoff` duration, so
+ * that an unavailable replica does not delay every read.  All other intents (i.e. writes, reads shortly after a write
+ * of the same thread, and connections requested without intent) use the primary.  Connections bound by
+ * `SQLBuilder.withConnection` or `SQLBuilder.inTransaction` are requested as WRITE (because they can be used for any
+ * statement) and therefore always use the primary.  Like any WRITE, they also make the reads of the same thread use
+ * the primary for the following `ConnectionProvider.readAfterWriteWindow`.
+ *
+ * The LEAST_LOADED strategy returns a new wrapper for every replica connection to count its open connections.  The
+ * StatementCache therefore only reuses statements within a single checkout of such a connection.
+ * <pre>`class AppConnectionProvider : RoutingConnectionProvider(PRIMARY_POOL, listOf(REPLICA_POOL_1, REPLICA_POOL_2))
+ * `</pre>
+ */
+open class RoutingConnectionProvider @JvmOverloads constructor(
+    private val primary: ConnectionProvider,
+    replicas: List<ConnectionProvider>,
+    val strategy: Strategy = Strategy.ROUND_ROBIN,
+    /**
+     * The time during which a replica which could not provide a connection is skipped
+     */
+    val backoff: Duration = DEFAULT_BACKOFF
+) : ConnectionProvider {
+    enum class Strategy { ROUND_ROBIN, LEAST_LOADED }
+
+    private class Replica(val provider: ConnectionProvider) {
+        val active = AtomicInteger()
+
+        // The time from which the replica is tried again after a failure
+        @Volatile
+        var healthyFrom = System.nanoTime()
+
+        fun isHealthy(now: Long) = now - healthyFrom >= 0
+    }
+
+    init {
+        require(!backoff.isNegative) { "The backoff must not be negative" }
+    }
+
+    private class CountedConnection(private val connection: Connection, private val replica: Replica) : Connection by connection {
+        private val closed = AtomicBoolean()
+
+        override fun close() {
+            if (closed.compareAndSet(false, true)) {
+                replica.active.decrementAndGet()
+            }
+            connection.close()
+        }
+    }
+
+    private val replicas = replicas.map(::Replica)
+    private val next = AtomicInteger()
+    private val replicaCount = AtomicLong()
+    private val fallbackCount = AtomicLong()
+
+    /**
+     * The number of connections borrowed from the replicas
+     */
+    val replicaConnections: Long
+        get() = replicaCount.get()
+
+    /**
+     * The number of reads which used the primary because no replica could provide a connection
+     */
+    val fallbacks: Long
+        get() = fallbackCount.get()
+
+    override fun getConnection(): Connection {
+        return primary.getConnection()
+    }
+
+    override fun getConnection(intent: Intent): Connection {
+        if (intent != Intent.READ || replicas.isEmpty()) {
+            return primary.getConnection(intent)
+        }
+        for (replica in candidates()) {
+            try {
+                return borrow(replica).also { replicaCount.incrementAndGet() }
+            } catch (e: SQLException) {
+                replica.healthyFrom = System.nanoTime() + backoff.toNanos()
+                logger.warn(e) { "Can't connect to replica, skipping it for $backoff" }
+            }
+        }
+        fallbackCount.incrementAndGet()
+        return primary.getConnection(intent)
+    }
+
+    // The healthy replicas in the order in which they should be tried
+    private fun candidates(): List<Replica> {
+        val now = System.nanoTime()
+        return when (strategy) {
+            Strategy.ROUND_ROBIN -> {
+                val first = Math.floorMod(next.getAndIncrement(), replicas.size)
+                (replicas.subList(first, replicas.size) + replicas.subList(0, first)).filter { it.isHealthy(now) }
+            }
+            Strategy.LEAST_LOADED -> replicas.filter { it.isHealthy(now) }.sortedBy { it.active.get() }
+        }
+    }
+
+    private fun borrow(replica: Replica): Connection {
+        if (strategy == Strategy.ROUND_ROBIN) {
+            return replica.provider.getConnection(Intent.READ)
+        }
+        replica.active.incrementAndGet()
+        try {
+            return CountedConnection(replica.provider.getConnection(Intent.READ), replica)
+        } catch (e: Throwable) {
+            replica.active.decrementAndGet()
+            throw e
+        }
+    }
+
+    companion object {
+        @JvmField
+        val DEFAULT_BACKOFF: Duration = Duration.ofSeconds(30)
+    }
+}
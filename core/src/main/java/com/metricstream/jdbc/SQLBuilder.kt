@@ -3,10 +3,6 @@
  */
 package com.metricstream.jdbc
 
-import java.lang.reflect.InvocationHandler
-import java.lang.reflect.InvocationTargetException
-import java.lang.reflect.Method
-import java.lang.reflect.Proxy
 import java.math.BigDecimal
 import java.sql.Connection
 import java.sql.Date
@@ -14,14 +10,20 @@ import java.sql.ResultSet
 import java.sql.SQLException
 import java.sql.Statement
 import java.sql.Timestamp
+import java.time.Duration
 import java.time.Instant
 import java.time.OffsetDateTime
 import java.util.AbstractMap.SimpleImmutableEntry
 import java.util.Optional
-import java.util.StringJoiner
-import java.util.regex.Matcher
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
 import java.util.regex.Pattern
+import java.util.stream.Stream
+import com.metricstream.jdbc.ConnectionProvider.Intent
 import org.apache.commons.codec.digest.DigestUtils
+import org.apache.commons.codec.digest.MurmurHash3
 
 private val logger = io.github.oshai.kotlinlogging.KotlinLogging.logger {}
 
@@ -53,6 +55,8 @@ class SQLBuilder {
     private val singleValuedNames: MutableMap<String, String> = mutableMapOf()
     private val multiValuedNames: MutableMap<String, List<String>> = mutableMapOf()
     private var delimiter = ""
+    // The template this object was created from. Only set as long as the statement is unchanged
+    private var template: SQLTemplate? = null
     @JvmField
     var resultSetType: Int = ResultSet.TYPE_FORWARD_ONLY
     @JvmField
@@ -61,9 +65,68 @@ class SQLBuilder {
     var fetchSize: Int = -1
     @JvmField
     var maxRows: Int = -1
+    @JvmField
+    var timeout: Duration? = null
+    @JvmField
+    var batchSize: Int = DEFAULT_BATCH_SIZE
+
+    /**
+     * The number of rows added using addBatch since the last executeBatch
+     */
+    var batchRows: Int = 0
+        private set
+    // Provider specific state of a running batch
+    internal var batch: AutoCloseable? = null
+    // False if the caller does not need the update counts of a batch, which then are not collected
+    internal var batchCounts = true
+    internal var keyColumns: List<String> = emptyList()
+    internal var keyConsumer: RowConsumer? = null
+    internal var cancelHandle: CancelHandle? = null
+    private var cachePolicy: ResultCache.Policy? = null
+    private var cacheScope: Any? = null
+    private var singleFlight = false
+    private var collectionBinding: CollectionBinding? = null
+    private var batchItems: Map<String, BatchItem>? = null
 
     internal enum class Mode { APPLY_BINDINGS, EXPAND_AND_APPLY, EXPAND_AND_SQL, EXPAND_AND_STRING }
 
+    /**
+     * How a collection argument is bound if its placeholder is the only element of an IN-list (i.e. `in (?)` or
+     * `not in (?)`).  Collection arguments of other placeholders are always expanded.
+     */
+    enum class CollectionBinding {
+        /**
+         * One placeholder per element
+         */
+        EXPAND,
+
+        /**
+         * One placeholder per element, padded to the next power of two by repeating the last element.  This keeps the
+         * number of distinct statements (and thus of parsed statements in the database and the StatementCache) small.
+         */
+        PADDED,
+
+        /**
+         * One placeholder per element, but lists with more than 1000 elements are split into several IN-lists which
+         * are combined using OR (or AND for NOT IN).  This avoids the Oracle limit of 1000 elements per IN-list.  It
+         * requires a column name in front of IN, and other lists are expanded as usual.
+         */
+        CHUNKED,
+
+        /**
+         * A single array parameter compared using `= any(?)` (or `<> all(?)` for NOT IN), e.g. for PostgreSQL.  The
+         * array is created using `Connection.createArrayOf` and freed when the statement is closed or returned to the
+         * StatementCache.
+         */
+        ANY_ARRAY,
+
+        /**
+         * A single Oracle collection parameter (SYS.ODCINUMBERLIST, SYS.ODCIVARCHAR2LIST or SYS.ODCIDATELIST) queried
+         * using `in (select column_value from table(?))`.
+         */
+        TABLE_ARRAY
+    }
+
     /**
      * Simple wrapper class for "sensitive" data like full names, email addresses or SSNs.
      * When logging a SQLBuilder object, we will print the hash of sensitive values instead of the value itself
@@ -75,15 +138,82 @@ class SQLBuilder {
      * `</pre>
      */
     class Masked(val data: Any?) {
+        // The hash of data together with the MaskHash which computed it.  Pair is immutable and thus can be shared
+        // between threads without synchronization.
+        private var digest: Pair<MaskHash, String>? = null
+
         override fun toString(): String {
             return when (data) {
                 null -> "null"
                 "" -> ""
-                else -> "__masked__:" + DigestUtils.md5Hex(data.toString())
+                else -> {
+                    val hash = maskHash
+                    val cached = digest
+                    if (cached != null && cached.first === hash) {
+                        cached.second
+                    } else {
+                        ("__masked__:" + hash.hash(data.toString())).also { digest = Pair(hash, it) }
+                    }
+                }
             }
         }
     }
 
+    /**
+     * Strategy which computes the hash printed for Masked values.  The strategy is set globally using
+     * `SQLBuilder.setMaskHash`.  Every Masked object computes its hash only once per strategy.
+     */
+    fun interface MaskHash {
+        fun hash(data: String): String
+
+        companion object {
+            /**
+             * Unsalted MD5 hash (the default).  This is stable across applications and releases, but vulnerable to
+             * rainbow table lookups for short values like names.
+             */
+            @JvmField
+            val MD5 = MaskHash { DigestUtils.md5Hex(it) }
+
+            /**
+             * Keyed 128-bit MurmurHash3.  This is much faster than MD5, but not a cryptographic hash: the seed only
+             * prevents precomputed lookups and must not be considered a secret key.
+             * @param seed The key of the hash
+             */
+            @JvmStatic
+            fun murmur3(seed: Int): MaskHash {
+                return MaskHash { data ->
+                    val bytes = data.toByteArray(Charsets.UTF_8)
+                    val hash = MurmurHash3.hash128x64(bytes, 0, bytes.size, seed)
+                    java.lang.Long.toHexString(hash[0]).padStart(16, '0') + java.lang.Long.toHexString(hash[1]).padStart(16, '0')
+                }
+            }
+
+            /**
+             * Salted SHA-256 hash.  Using an application specific secret salt prevents rainbow table lookups.
+             * @param salt The salt which is prepended to every value
+             */
+            @JvmStatic
+            fun salted(salt: String): MaskHash {
+                return MaskHash { DigestUtils.sha256Hex(salt + it) }
+            }
+        }
+    }
+
+    /**
+     * Placeholder value which can be changed between the rows of a batch.
+     * <pre>`SQLBuilder sb = new SQLBuilder("insert into foo (a, b) values (?, ?)", a, SQLBuilder.batchItem("b"));
+     * for (String b : values) {
+     *     sb.set("b", b).addBatch(connection);
+     * }
+     * int[] counts = sb.executeBatch(connection);
+     * `</pre>
+     */
+    class BatchItem(val name: String, var value: Any?) {
+        override fun toString(): String {
+            return value.toString()
+        }
+    }
+
     /**
      * Creates a new SQBuilder object. The number of ? in the sql parameter
      * must be identical to the number of args
@@ -103,8 +233,38 @@ class SQLBuilder {
         resultSetType = sqlBuilder.resultSetType
         fetchSize = sqlBuilder.fetchSize
         maxRows = sqlBuilder.maxRows
+        timeout = sqlBuilder.timeout
+        batchSize = sqlBuilder.batchSize
+        cachePolicy = sqlBuilder.cachePolicy
+        cacheScope = sqlBuilder.cacheScope
+        singleFlight = sqlBuilder.singleFlight
+        collectionBinding = sqlBuilder.collectionBinding
         append(sqlBuilder)
         delimiter = " "
+        template = sqlBuilder.template
+        // batch items are mutable and therefore must not be shared with the original
+        arguments.replaceAll { if (it is BatchItem) BatchItem(it.name, it.value) else it }
+    }
+
+    /**
+     * Creates a new SQLBuilder object from a precompiled template.
+     * @param template The template
+     * @param args The parameters for the template
+     */
+    internal constructor(template: SQLTemplate, args: Array<out Any?>) {
+        resultSetType = template.resultSetType
+        resultSetConcurrency = template.resultSetConcurrency
+        fetchSize = template.fetchSize
+        maxRows = template.maxRows
+        timeout = template.timeout
+        collectionBinding = template.collectionBinding
+        cachePolicy = template.cachePolicy
+        cacheScope = template.cacheScope
+        singleFlight = template.singleFlight
+        statement.append(template.sql)
+        arguments.addAll(args)
+        delimiter = " "
+        this.template = template
     }
 
     /**
@@ -175,6 +335,8 @@ class SQLBuilder {
      * @return The SQLBuilder object
      */
     fun append(sql: String, vararg args: Any?): SQLBuilder {
+        template = null
+        batchItems = null
         statement.append(delimiter).append(sql)
         if (args.isNotEmpty()) {
             arguments.addAll(listOf(*args))
@@ -194,6 +356,8 @@ class SQLBuilder {
         singleValuedNames.putAll(sqlBuilder.singleValuedNames)
         multiValuedNames.putAll(sqlBuilder.multiValuedNames)
         arguments.addAll(sqlBuilder.arguments)
+        template = null
+        batchItems = null
         statement.append(delimiter).append(sqlBuilder.statement)
         return this
     }
@@ -217,6 +381,7 @@ class SQLBuilder {
      * @return the SQLBuilder object
      */
     fun wrap(before: String, after: String): SQLBuilder {
+        template = null
         statement.insert(0, before).append(after)
         return this
     }
@@ -228,64 +393,35 @@ class SQLBuilder {
     }
 
     private fun addName(name: String) {
-        require(name.matches(Regex("""\w+"""))) { """The binding name "$name" must only consist of word characters [a-zA-Z_0-9]""" }
+        require(name.isNotEmpty() && name.all(SQLTokenizer::isWordChar)) {
+            """The binding name "$name" must only consist of word characters [a-zA-Z_0-9]"""
+        }
         require(names.add(name)) { """The binding name "$name" must be unique""" }
     }
 
     internal fun interpolate(mode: Mode, expanded: MutableList<Any?> = mutableListOf()): String {
-        val expandedStatement = StringBuilder(statement)
-        if (arguments.isNotEmpty() && mode != Mode.APPLY_BINDINGS) {
-            // We must not expand in APPLY_BINDINGS mode because that can be called multiple times
-            // and would thus expand the placeholders multiple times
-            var sqlPos = 0
-            for (arg in arguments) {
-                sqlPos = expandedStatement.indexOf("?", sqlPos) + 1
-                if (sqlPos == 0) {
-                    // We ran out of placeholders (i.e. we have extra parameters).
-                    // We do not consider that as a bug (though one could argue this
-                    // should result in a warning).
-                    break
-                }
-                if (arg is Collection<*>) {
-                    val col = arg as Collection<Any?>
-                    val length = col.size
-                    if (length == 0) {
-                        // TODO: This should throw an IllegalArgumentException, but we first have to check what that does to all the callers
-                        throw SQLException("Collection parameters must contain at least one element")
-                    }
-                    // The statement already contains one "?", therefore we only add length - 1 additional placeholders
-                    val additionalPlaceHolders = ",?".repeat(length - 1)
-                    expandedStatement.insert(sqlPos, additionalPlaceHolders)
-                    // move sqlPos beyond the inserted ",?"
-                    sqlPos += additionalPlaceHolders.length
-                    expanded.addAll(col)
-                } else {
-                    expanded.add(arg)
-                }
-            }
+        // We must not expand in APPLY_BINDINGS mode because that can be called multiple times
+        // and would thus expand the placeholders multiple times
+        val expandedStatement: CharSequence = if (arguments.isNotEmpty() && mode != Mode.APPLY_BINDINGS) {
+            SQLTokenizer.expand(statement, arguments, expanded, template?.placeholders, collectionBinding ?: defaultCollectionBinding)
+        } else {
+            statement
         }
 
-        val quoted = mutableMapOf<String, String>()
-        val regexp = StringJoiner("""|""", """[:$]\{(""", """)\}""")
+        val quoted = HashMap<String, String>(singleValuedNames.size + multiValuedNames.size)
         for ((key, value) in singleValuedNames) {
             quoted[key] = nameQuote(value)
-            regexp.add(key)
         }
         for ((key, values) in multiValuedNames) {
             quoted[key] = values.joinToString(", ") { nameQuote(it) }
-            regexp.add(key)
         }
 
-        val sb = StringBuffer()
-        if (quoted.isNotEmpty()) {
-            val p = Pattern.compile(regexp.toString())
-            val m = p.matcher(expandedStatement.toString())
-            while (m.find()) {
-                m.appendReplacement(sb, Matcher.quoteReplacement(quoted[m.group(1)]))
-            }
-            m.appendTail(sb)
+        val sb = if (quoted.isNotEmpty()) {
+            SQLTokenizer.bind(expandedStatement, quoted)
+        } else if (expandedStatement is StringBuilder && expandedStatement !== statement) {
+            expandedStatement
         } else {
-            sb.append(expandedStatement)
+            StringBuilder(expandedStatement)
         }
 
         return when (mode) {
@@ -293,6 +429,7 @@ class SQLBuilder {
                 names.clear()
                 singleValuedNames.clear()
                 multiValuedNames.clear()
+                template = null
                 statement.setLength(0)
                 statement.append(sb)
                 sb.setLength(0)
@@ -309,6 +446,30 @@ class SQLBuilder {
         }
     }
 
+    /**
+     * Compiles this SQLBuilder object into an immutable template.  The template contains the statement with all
+     * bindings applied, the ResultSet options, and the collection binding, result cache and single-flight settings, and
+     * can be shared between threads.
+     * @return The SQLTemplate object
+     * @throws IllegalStateException if this SQLBuilder object already contains parameters
+     */
+    fun compile(): SQLTemplate {
+        check(arguments.isEmpty()) { "SQLBuilder objects with parameters cannot be compiled" }
+        val bound = SQLBuilder(this).applyBindings()
+        return SQLTemplate(
+            bound.statement.toString(),
+            resultSetType,
+            resultSetConcurrency,
+            fetchSize,
+            maxRows,
+            timeout,
+            collectionBinding,
+            cachePolicy,
+            cacheScope,
+            singleFlight,
+        )
+    }
+
     /**
      * This changes the ResultSet type from TYPE_FORWARD_ONLY to TYPE_SCROLL_INSENSITIVE
      * @return The SQLBuilder object
@@ -349,6 +510,198 @@ class SQLBuilder {
         return this
     }
 
+    /**
+     * This changes the query timeout of the statement.  The driver cancels the statement and throws a
+     * SQLTimeoutException if the execution takes longer.  JDBC timeouts have a granularity of seconds, so the timeout
+     * is rounded up to full seconds.
+     * @param timeout The new timeout.  Duration.ZERO disables the timeout, and null means that the default timeout set
+     * using `SQLBuilder.setDefaultTimeout` is used
+     * @return the SQLBuilder object
+     */
+    fun withTimeout(timeout: Duration?): SQLBuilder {
+        require(timeout == null || !timeout.isNegative) { "The timeout must not be negative" }
+        this.timeout = timeout
+        return this
+    }
+
+    /**
+     * This sets the handle which cancels the statements executed for this SQLBuilder object.  The asynchronous methods
+     * use their own handle and are instead cancelled using their CompletableFuture.
+     * @param cancelHandle The handle, or null to remove the handle
+     * @return the SQLBuilder object
+     */
+    fun withCancelHandle(cancelHandle: CancelHandle?): SQLBuilder {
+        this.cancelHandle = cancelHandle
+        return this
+    }
+
+    /**
+     * This enables the ResultCache for the results of getList, getListWithNull, getMap and getSingle.  The cached
+     * results are unmodifiable and shared between all callers using the same statement, arguments and row mapper
+     * object within the same scope (see `withCacheScope`).  Row mappers are compared by identity (unless they
+     * implement `equals`), so a lambda which captures values is only shared if the same lambda object is reused.
+     * @param ttl The time after which a cached result expires
+     * @param tags The tags (e.g. the names of the queried tables) which invalidate the result.  Executing a statement
+     * which modifies a table invalidates the tag of that table
+     * @return the SQLBuilder object
+     */
+    fun cached(ttl: Duration, vararg tags: String): SQLBuilder {
+        require(!ttl.isNegative && !ttl.isZero) { "The time-to-live must be positive" }
+        cachePolicy = ResultCache.Policy(ttl, tags)
+        return this
+    }
+
+    /**
+     * This sets the scope in which cached results are shared (see `cached`).  By default, results queried using a
+     * Connection object are only shared between queries using the same database session, while the connection-less
+     * methods share their results with each other (but use the session of the transaction started by `inTransaction`).
+     * An explicit scope (e.g. the name of a DataSource) lets queries using different sessions of the same database user
+     * share their results.
+     * @param cacheScope The scope, or null for the default scope
+     * @return the SQLBuilder object
+     */
+    fun withCacheScope(cacheScope: Any?): SQLBuilder {
+        this.cacheScope = cacheScope
+        return this
+    }
+
+    /**
+     * This changes how collection arguments of IN-lists are bound.  Array bindings fall back to one placeholder per
+     * element if the elements don't have a common supported type (e.g. numbers, strings, or dates).
+     * @param collectionBinding The binding, or null to use the default set by `SQLBuilder.setCollectionBinding`
+     * @return the SQLBuilder object
+     */
+    fun withCollectionBinding(collectionBinding: CollectionBinding?): SQLBuilder {
+        this.collectionBinding = collectionBinding
+        return this
+    }
+
+    /**
+     * This lets identical concurrent executions of getList, getListWithNull, getMap and getSingle share one execution.
+     * Executions using the same statement, arguments and row mapper object within the same scope (see
+     * `withCacheScope`) which start while another one is running wait for and return its result (or throw its
+     * exception) instead of querying the database.  The results are therefore unmodifiable.  Executions using different
+     * database sessions only share their result if they use the same explicit scope, while the connection-less methods
+     * share their results outside of `inTransaction` (and don't borrow a connection while waiting).  Waiting
+     * executions honor their own timeout and CancelHandle, and execute the query themselves if the running execution
+     * was cancelled or timed out.
+     * @return the SQLBuilder object
+     */
+    fun withSingleFlight(): SQLBuilder {
+        singleFlight = true
+        return this
+    }
+
+    // Returns the result of query from the ResultCache if this object uses it, and shares the execution of query with
+    // identical concurrent executions in single-flight mode.  connection is null for the connection-less methods, which
+    // thus look up the result before borrowing a connection.
+    private inline fun <T> fromCache(kind: String, rowMapper: Any, extra: Any?, connection: Connection?, crossinline query: () -> T): T {
+        val policy = cachePolicy
+        if (policy == null && !singleFlight) {
+            return query()
+        }
+        val key = ResultCache.Key.of(this, kind, rowMapper, extra, cacheScope ?: ResultCache.scope(connection))
+        val shared = { if (singleFlight) SingleFlight.run(key, this) { query() } else query() }
+        return if (policy == null) shared() else ResultCache.get(key, policy, shared)
+    }
+
+    /**
+     * This changes the number of rows after which addBatch sends the collected rows to the database.
+     * @param batchSize The new batchSize
+     * @return the SQLBuilder object
+     */
+    fun withBatchSize(batchSize: Int): SQLBuilder {
+        require(batchSize > 0) { "The batch size must be positive" }
+        this.batchSize = batchSize
+        return this
+    }
+
+    /**
+     * Requests the generated keys for the rows of a batch.  This must be called before the first addBatch.
+     * @param keyColumns column names from the underlying table for which the inserted values will be returned
+     * @param keyConsumer The lambda called for every row of generated keys.  This is called whenever a batch is sent
+     * to the database and thus before executeBatch returns
+     * @return the SQLBuilder object
+     */
+    fun withGeneratedKeys(keyColumns: List<String>, keyConsumer: RowConsumer): SQLBuilder {
+        check(batch == null) { "Generated keys must be requested before adding rows to a batch" }
+        this.keyColumns = keyColumns
+        this.keyConsumer = keyConsumer
+        return this
+    }
+
+    /**
+     * Changes the value of a batch item.
+     * @param name The name of the batch item
+     * @param value The new value.  This must not be a collection because that would change the SQL statement
+     * @return the SQLBuilder object
+     */
+    fun set(name: String, value: Any?): SQLBuilder {
+        require(value !is Collection<*>) { "Batch item values must not be collections" }
+        val items = batchItems ?: arguments.filterIsInstance<BatchItem>().associateBy { it.name }.also { batchItems = it }
+        val item = requireNotNull(items[name]) { """Unknown batch item "$name"""" }
+        item.value = value
+        return this
+    }
+
+    /**
+     * Adds the current values of all parameters as a row to the batch.  The PreparedStatement object is created for
+     * the first row and then reused for all the following rows, and only batch items which were set to a new value are
+     * bound again.  The rows are sent to the database whenever batchSize rows are collected.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @throws SQLException the exception thrown when adding the row or sending the rows to the database.  The batch is
+     * discarded in that case
+     */
+    @Throws(SQLException::class)
+    fun addBatch(connection: Connection): SQLBuilder {
+        try {
+            delegate.addBatch(this, connection)
+        } catch (e: SQLException) {
+            clearBatch()
+            throw e
+        }
+        batchRows++
+        return this
+    }
+
+    /**
+     * Sends all remaining rows of the batch to the database.  This also releases the PreparedStatement object used
+     * for the batch, and the SQLBuilder object can then be used for a new batch.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @return The update counts of all rows added since the last executeBatch
+     * @throws SQLException the exception thrown when executing the batch
+     */
+    @Throws(SQLException::class)
+    fun executeBatch(connection: Connection): IntArray {
+        val counts = executeLargeBatch(connection)
+        return IntArray(counts.size) { counts[it].toInt() }
+    }
+
+    /**
+     * Sends all remaining rows of the batch to the database.  This also releases the PreparedStatement object used
+     * for the batch, and the SQLBuilder object can then be used for a new batch.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @return The update counts of all rows added since the last executeBatch
+     * @throws SQLException the exception thrown when executing the batch
+     */
+    @Throws(SQLException::class)
+    fun executeLargeBatch(connection: Connection): LongArray {
+        try {
+            return delegate.executeBatch(this, connection).also { ResultCache.written(statement) }
+        } finally {
+            clearBatch()
+        }
+    }
+
+    /**
+     * Discards all rows added since the last executeBatch and releases the PreparedStatement object used for the batch.
+     */
+    fun clearBatch() {
+        batchRows = 0
+        batch?.let { close(it) }
+        batch = null
+    }
+
     /**
      * Returns a ResultSet object created from a PreparedStatement object created using
      * the SQL statement and the parameters.  The PreparedStatement object
@@ -373,7 +726,7 @@ class SQLBuilder {
     @Throws(SQLException::class)
     @JvmOverloads
     fun getResultSet(wrapConnection: Boolean = false): ResultSet {
-        delegate.getConnection().use { return delegate.getResultSet(this, it, wrapConnection) }
+        delegate.getConnection(Intent.READ).use { return delegate.getResultSet(this, it, wrapConnection) }
     }
 
     /**
@@ -398,7 +751,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getInt(columnNumber: Int, defaultValue: Int): Int {
-        delegate.getConnection().use { return delegate.getInt(this, it, columnNumber, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getInt(this, it, columnNumber, defaultValue) }
     }
 
     /**
@@ -423,7 +776,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getInt(columnName: String, defaultValue: Int): Int {
-        delegate.getConnection().use { return delegate.getInt(this, it, columnName, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getInt(this, it, columnName, defaultValue) }
     }
 
     /**
@@ -448,7 +801,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getLong(columnNumber: Int, defaultValue: Long): Long {
-        delegate.getConnection().use { return delegate.getLong(this, it, columnNumber, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getLong(this, it, columnNumber, defaultValue) }
     }
 
     /**
@@ -473,7 +826,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getLong(columnName: String, defaultValue: Long): Long {
-        delegate.getConnection().use { return delegate.getLong(this, it, columnName, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getLong(this, it, columnName, defaultValue) }
     }
 
     /**
@@ -498,7 +851,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getDouble(columnNumber: Int, defaultValue: Double): Double {
-        delegate.getConnection().use { return delegate.getDouble(this, it, columnNumber, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getDouble(this, it, columnNumber, defaultValue) }
     }
 
     /**
@@ -522,7 +875,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getDouble(columnName: String, defaultValue: Double): Double {
-        delegate.getConnection().use { return delegate.getDouble(this, it, columnName, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getDouble(this, it, columnName, defaultValue) }
     }
 
     /**
@@ -547,7 +900,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getString(columnNumber: Int, defaultValue: String?): String? {
-        delegate.getConnection().use { return delegate.getString(this, it, columnNumber, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getString(this, it, columnNumber, defaultValue) }
     }
 
     /**
@@ -572,7 +925,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getString(columnName: String, defaultValue: String?): String? {
-        delegate.getConnection().use { return delegate.getString(this, it, columnName, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getString(this, it, columnName, defaultValue) }
     }
 
     /**
@@ -597,7 +950,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getBigDecimal(columnNumber: Int, defaultValue: BigDecimal?): BigDecimal? {
-        delegate.getConnection().use { return delegate.getBigDecimal(this, it, columnNumber, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getBigDecimal(this, it, columnNumber, defaultValue) }
     }
 
     /**
@@ -622,7 +975,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getBigDecimal(columnName: String, defaultValue: BigDecimal?): BigDecimal? {
-        delegate.getConnection().use { return delegate.getBigDecimal(this, it, columnName, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getBigDecimal(this, it, columnName, defaultValue) }
     }
 
     /**
@@ -647,7 +1000,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getObject(columnNumber: Int, defaultValue: Any?): Any? {
-        delegate.getConnection().use { return delegate.getObject(this, it, columnNumber, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getObject(this, it, columnNumber, defaultValue) }
     }
 
     /**
@@ -672,7 +1025,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getObject(columnName: String, defaultValue: Any?): Any? {
-        delegate.getConnection().use { return delegate.getObject(this, it, columnName, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getObject(this, it, columnName, defaultValue) }
     }
 
     /**
@@ -697,7 +1050,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getDateTime(columnNumber: Int, defaultValue: OffsetDateTime?): OffsetDateTime? {
-        delegate.getConnection().use { return delegate.getDateTime(this, it, columnNumber, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getDateTime(this, it, columnNumber, defaultValue) }
     }
 
     /**
@@ -722,7 +1075,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getDateTime(columnName: String, defaultValue: OffsetDateTime?): OffsetDateTime? {
-        delegate.getConnection().use { return delegate.getDateTime(this, it, columnName, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getDateTime(this, it, columnName, defaultValue) }
     }
 
     /**
@@ -747,7 +1100,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getInstant(columnNumber: Int, defaultValue: Instant?): Instant? {
-        delegate.getConnection().use { return delegate.getInstant(this, it, columnNumber, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getInstant(this, it, columnNumber, defaultValue) }
     }
 
     /**
@@ -772,7 +1125,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getInstant(columnName: String, defaultValue: Instant?): Instant? {
-        delegate.getConnection().use { return delegate.getInstant(this, it, columnName, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getInstant(this, it, columnName, defaultValue) }
     }
 
     /**
@@ -797,7 +1150,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getTimestamp(columnNumber: Int, defaultValue: Timestamp?): Timestamp? {
-        delegate.getConnection().use { return delegate.getTimestamp(this, it, columnNumber, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getTimestamp(this, it, columnNumber, defaultValue) }
     }
 
     /**
@@ -822,7 +1175,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getTimestamp(columnName: String, defaultValue: Timestamp?): Timestamp? {
-        delegate.getConnection().use { return delegate.getTimestamp(this, it, columnName, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getTimestamp(this, it, columnName, defaultValue) }
     }
 
     /**
@@ -847,7 +1200,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getDate(columnNumber: Int, defaultValue: Date?): Date? {
-        delegate.getConnection().use { return delegate.getDate(this, it, columnNumber, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getDate(this, it, columnNumber, defaultValue) }
     }
 
     /**
@@ -872,7 +1225,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun getDate(columnName: String, defaultValue: Date?): Date? {
-        delegate.getConnection().use { return delegate.getDate(this, it, columnName, defaultValue) }
+        delegate.getConnection(Intent.READ).use { return delegate.getDate(this, it, columnName, defaultValue) }
     }
 
     /**
@@ -883,7 +1236,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun execute(connection: Connection): Int {
-        return delegate.execute(this, connection)
+        return delegate.execute(this, connection).also { ResultCache.written(statement) }
     }
 
     /**
@@ -893,7 +1246,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun execute(): Int {
-        delegate.getConnection().use { return delegate.execute(this, it) }
+        delegate.getConnection(Intent.WRITE).use { return delegate.execute(this, it).also { ResultCache.written(statement) } }
     }
 
     /**
@@ -906,7 +1259,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun execute(connection: Connection, vararg keyColumns: String): ResultSet {
-        return delegate.execute(this, connection, *keyColumns)
+        return delegate.execute(this, connection, *keyColumns).also { ResultCache.written(statement) }
     }
 
     /**
@@ -918,7 +1271,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun execute(vararg keyColumns: String): ResultSet {
-        delegate.getConnection().use { return delegate.execute(this, it, *keyColumns) }
+        delegate.getConnection(Intent.WRITE).use { return delegate.execute(this, it, *keyColumns).also { ResultCache.written(statement) } }
     }
 
     fun interface RowMapper<T> {
@@ -926,6 +1279,21 @@ class SQLBuilder {
         fun map(rs: ResultSet): T
     }
 
+    fun interface RowConsumer {
+        @Throws(SQLException::class)
+        fun accept(rs: ResultSet)
+    }
+
+    fun interface RowFolder<A> {
+        @Throws(SQLException::class)
+        fun fold(accumulator: A, rs: ResultSet): A
+    }
+
+    fun interface ConnectionAction<T> {
+        @Throws(SQLException::class)
+        fun execute(connection: Connection): T
+    }
+
     /**
      * Returns a list of objects generated from the ResultSet
      * @param connection The Connection object from which the PreparedStatement object is created
@@ -935,7 +1303,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun <T> getList(connection: Connection, rowMapper: RowMapper<T>): List<T> {
-        return delegate.getList(this, connection, rowMapper)
+        return fromCache("list", rowMapper, null, connection) { delegate.getList(this, connection, rowMapper) }
     }
 
     /**
@@ -946,7 +1314,232 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun <T> getList(rowMapper: RowMapper<T>): List<T> {
-        delegate.getConnection().use { return delegate.getList(this, it, rowMapper) }
+        return fromCache("list", rowMapper, null, null) {
+            delegate.getConnection(Intent.READ).use { delegate.getList(this, it, rowMapper) }
+        }
+    }
+
+    /**
+     * Returns a map from the long values of a column to objects generated from the ResultSet.  The map stores its keys
+     * unboxed and therefore needs much less memory than the map returned by getMap.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param keyColumn The index of the key column (starting with 1)
+     * @param withNull If false, null values returned from the lambda are ignored.  Otherwise, they
+     * are added to the returned map
+     * @param rowMapper The lambda called per row to produce a map value
+     * @return The map of generated values
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     * @throws IllegalStateException if a key is SQL NULL or occurs more than once
+     */
+    @Throws(SQLException::class, IllegalStateException::class)
+    @JvmOverloads
+    fun <V> getLongKeyedMap(
+        connection: Connection,
+        keyColumn: Int,
+        withNull: Boolean = false,
+        rowMapper: RowMapper<V?>
+    ): LongKeyedMap<V?> {
+        return delegate.getLongKeyedMap(this, connection, keyColumn, rowMapper, withNull)
+    }
+
+    /**
+     * Returns a map from the int values of a column to objects generated from the ResultSet.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param keyColumn The index of the key column (starting with 1)
+     * @param withNull If false, null values returned from the lambda are ignored.  Otherwise, they
+     * are added to the returned map
+     * @param rowMapper The lambda called per row to produce a map value
+     * @return The map of generated values
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     * @throws IllegalStateException if a key is SQL NULL or occurs more than once
+     */
+    @Throws(SQLException::class, IllegalStateException::class)
+    @JvmOverloads
+    fun <V> getIntKeyedMap(
+        connection: Connection,
+        keyColumn: Int,
+        withNull: Boolean = false,
+        rowMapper: RowMapper<V?>
+    ): IntKeyedMap<V?> {
+        return delegate.getIntKeyedMap(this, connection, keyColumn, rowMapper, withNull)
+    }
+
+    /**
+     * Returns the values of a column of the ResultSet as a primitive array.  This avoids boxing the values and therefore
+     * needs much less memory than `getList { it.getInt(columnNumber) }`.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param columnNumber The index of the column (starting with 1)
+     * @param nullValue The value used for SQL NULL values
+     * @return The values of all rows
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    @JvmOverloads
+    fun getIntArray(connection: Connection, columnNumber: Int, nullValue: Int = 0): IntArray {
+        return delegate.getIntList(this, connection, columnNumber).toIntArray(nullValue)
+    }
+
+    /**
+     * Returns the values of a column of the ResultSet as a primitive array.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param columnNumber The index of the column (starting with 1)
+     * @param nullValue The value used for SQL NULL values
+     * @return The values of all rows
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    @JvmOverloads
+    fun getLongArray(connection: Connection, columnNumber: Int, nullValue: Long = 0L): LongArray {
+        return delegate.getLongList(this, connection, columnNumber).toLongArray(nullValue)
+    }
+
+    /**
+     * Returns the values of a column of the ResultSet as a primitive array.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param columnNumber The index of the column (starting with 1)
+     * @param nullValue The value used for SQL NULL values, e.g. Double.NaN
+     * @return The values of all rows
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    @JvmOverloads
+    fun getDoubleArray(connection: Connection, columnNumber: Int, nullValue: Double = 0.0): DoubleArray {
+        return delegate.getDoubleList(this, connection, columnNumber).toDoubleArray(nullValue)
+    }
+
+    /**
+     * Returns the values of a column of the ResultSet as a primitive list.  Unlike getIntArray, the list records
+     * which values were SQL NULL.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param columnNumber The index of the column (starting with 1)
+     * @return The values of all rows
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    fun getIntList(connection: Connection, columnNumber: Int): IntList {
+        return delegate.getIntList(this, connection, columnNumber)
+    }
+
+    /**
+     * Returns the values of a column of the ResultSet as a primitive list.  Unlike getLongArray, the list records
+     * which values were SQL NULL.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param columnNumber The index of the column (starting with 1)
+     * @return The values of all rows
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    fun getLongList(connection: Connection, columnNumber: Int): LongList {
+        return delegate.getLongList(this, connection, columnNumber)
+    }
+
+    /**
+     * Returns the values of a column of the ResultSet as a primitive list.  Unlike getDoubleArray, the list records
+     * which values were SQL NULL.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param columnNumber The index of the column (starting with 1)
+     * @return The values of all rows
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    fun getDoubleList(connection: Connection, columnNumber: Int): DoubleList {
+        return delegate.getDoubleList(this, connection, columnNumber)
+    }
+
+    /**
+     * Calls rowConsumer for every row of the ResultSet.  Unlike getList, this does not create any intermediate
+     * objects and should therefore be used if the rows are only processed once.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param rowConsumer The lambda called per row
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    fun forEach(connection: Connection, rowConsumer: RowConsumer) {
+        delegate.forEach(this, connection, rowConsumer)
+    }
+
+    /**
+     * Calls rowConsumer for every row of the ResultSet.
+     * @param rowConsumer The lambda called per row
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    fun forEach(rowConsumer: RowConsumer) {
+        delegate.getConnection(Intent.READ).use { delegate.forEach(this, it, rowConsumer) }
+    }
+
+    /**
+     * Combines all rows of the ResultSet into a single value, e.g. a sum or a count.
+     * <pre>`long total = new SQLBuilder("select amount from orders").fold(connection, 0L, (sum, rs) -> sum + rs.getLong(1));
+     * `</pre>
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param initial The initial value of the accumulator
+     * @param rowFolder The lambda called per row with the current accumulator.  Its result is the new accumulator
+     * @return The final accumulator, or initial if there are no rows
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    fun <A> fold(connection: Connection, initial: A, rowFolder: RowFolder<A>): A {
+        return delegate.fold(this, connection, initial, rowFolder)
+    }
+
+    /**
+     * Combines all rows of the ResultSet into a single value, e.g. a sum or a count.
+     * @param initial The initial value of the accumulator
+     * @param rowFolder The lambda called per row with the current accumulator.  Its result is the new accumulator
+     * @return The final accumulator, or initial if there are no rows
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    fun <A> fold(initial: A, rowFolder: RowFolder<A>): A {
+        delegate.getConnection(Intent.READ).use { return delegate.fold(this, it, initial, rowFolder) }
+    }
+
+    /**
+     * Returns a lazy stream of objects generated from the ResultSet.  Rows are only fetched from the database when the
+     * stream requests them (using fetchSize rows per roundtrip if that is set), and therefore the result does not have
+     * to fit into memory.  The ResultSet and the PreparedStatement are closed when the stream is closed or fully
+     * consumed.  The stream should be used in a try-with-resources statement unless it is always fully consumed.
+     * SQLExceptions thrown while reading rows are propagated unchanged by the stream operations.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param rowMapper The lambda called per row to produce a stream item.
+     * @return The stream of generated items
+     * @throws SQLException the exception thrown when executing the query
+     */
+    @Throws(SQLException::class)
+    fun <T> stream(connection: Connection, rowMapper: RowMapper<T>): Stream<T> {
+        return delegate.stream(this, connection, rowMapper, false)
+    }
+
+    /**
+     * Returns a lazy stream of objects generated from the ResultSet.  This is identical to `stream(connection, rowMapper)`
+     * but uses a connection from the connection provider which is closed together with the stream.
+     * @param rowMapper The lambda called per row to produce a stream item.
+     * @return The stream of generated items
+     * @throws SQLException the exception thrown when executing the query
+     */
+    @Throws(SQLException::class)
+    fun <T> stream(rowMapper: RowMapper<T>): Stream<T> {
+        val connection = delegate.getConnection(Intent.READ)
+        try {
+            return delegate.stream(this, connection, rowMapper, true)
+        } catch (ex: Throwable) {
+            close(connection)
+            throw ex
+        }
+    }
+
+    /**
+     * Passes a lazy sequence of objects generated from the ResultSet to block and closes all resources afterward.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param rowMapper The lambda called per row to produce a sequence item.
+     * @param block The lambda consuming the sequence.  The sequence must not be used after block returns
+     * @return The result of block
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    fun <T, R> useSequence(connection: Connection, rowMapper: RowMapper<T>, block: (Sequence<T>) -> R): R {
+        return stream(connection, rowMapper).use { block(it.iterator().asSequence()) }
     }
 
     /**
@@ -958,7 +1551,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun <T> getListWithNull(connection: Connection, rowMapper: RowMapper<T?>): List<T?> {
-        return delegate.getListWithNull(this, connection, rowMapper)
+        return fromCache("listWithNull", rowMapper, null, connection) { delegate.getListWithNull(this, connection, rowMapper) }
     }
 
     /**
@@ -969,7 +1562,9 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun <T> getListWithNull(rowMapper: RowMapper<T?>): List<T?> {
-        delegate.getConnection().use { return delegate.getListWithNull(this, it, rowMapper) }
+        return fromCache("listWithNull", rowMapper, null, null) {
+            delegate.getConnection(Intent.READ).use { delegate.getListWithNull(this, it, rowMapper) }
+        }
     }
 
     /**
@@ -982,7 +1577,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class, IllegalStateException::class)
     fun <K, V> getMap(connection: Connection, rowMapper: RowMapper<Map.Entry<K, V?>>): Map<K, V?> {
-        return delegate.getMap(this, connection, rowMapper, false)
+        return fromCache("map", rowMapper, false, connection) { delegate.getMap(this, connection, rowMapper, false) }
     }
 
     /**
@@ -994,7 +1589,9 @@ class SQLBuilder {
      */
     @Throws(SQLException::class, IllegalStateException::class)
     fun <K, V> getMap(rowMapper: RowMapper<Map.Entry<K, V?>>): Map<K, V?> {
-        delegate.getConnection().use { return delegate.getMap(this, it, rowMapper, false) }
+        return fromCache("map", rowMapper, false, null) {
+            delegate.getConnection(Intent.READ).use { delegate.getMap(this, it, rowMapper, false) }
+        }
     }
 
     /**
@@ -1010,7 +1607,7 @@ class SQLBuilder {
     @Deprecated(message = "Use correct parameter order", replaceWith = ReplaceWith("getMap(connection, withNull, rowMapper)"))
     @Throws(SQLException::class, IllegalStateException::class)
     fun <K, V> getMap(connection: Connection, rowMapper: RowMapper<Map.Entry<K, V?>>, withNull: Boolean): Map<K, V?> {
-        return delegate.getMap(this, connection, rowMapper, withNull)
+        return fromCache("map", rowMapper, withNull, connection) { delegate.getMap(this, connection, rowMapper, withNull) }
     }
 
     /**
@@ -1025,7 +1622,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class, IllegalStateException::class)
     fun <K, V> getMap(connection: Connection, withNull: Boolean, rowMapper: RowMapper<Map.Entry<K, V?>>): Map<K, V?> {
-        return delegate.getMap(this, connection, rowMapper, withNull)
+        return fromCache("map", rowMapper, withNull, connection) { delegate.getMap(this, connection, rowMapper, withNull) }
     }
 
     /**
@@ -1039,7 +1636,9 @@ class SQLBuilder {
      */
     @Throws(SQLException::class, IllegalStateException::class)
     fun <K, V> getMap(withNull: Boolean, rowMapper: RowMapper<Map.Entry<K, V?>>): Map<K, V?> {
-        delegate.getConnection().use { return delegate.getMap(this, it, rowMapper, withNull) }
+        return fromCache("map", rowMapper, withNull, null) {
+            delegate.getConnection(Intent.READ).use { delegate.getMap(this, it, rowMapper, withNull) }
+        }
     }
 
     /**
@@ -1051,7 +1650,7 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun <T : Any> getSingle(connection: Connection, rowMapper: RowMapper<T?>): Optional<T> {
-        return delegate.getSingle(this, connection, rowMapper)
+        return fromCache("single", rowMapper, null, connection) { delegate.getSingle(this, connection, rowMapper) }
     }
 
     /**
@@ -1062,7 +1661,9 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun <T : Any> getSingle(rowMapper: RowMapper<T?>): Optional<T> {
-        delegate.getConnection().use { return delegate.getSingle(this, it, rowMapper) }
+        return fromCache("single", rowMapper, null, null) {
+            delegate.getConnection(Intent.READ).use { delegate.getSingle(this, it, rowMapper) }
+        }
     }
 
     /**
@@ -1074,7 +1675,9 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun <T> getSingle(connection: Connection, rowMapper: RowMapper<T?>, defaultValue: T?): T? {
-        return delegate.getSingle(this, connection, rowMapper, defaultValue)
+        return fromCache("singleOrDefault", rowMapper, defaultValue, connection) {
+            delegate.getSingle(this, connection, rowMapper, defaultValue)
+        }
     }
 
     /**
@@ -1085,56 +1688,150 @@ class SQLBuilder {
      */
     @Throws(SQLException::class)
     fun <T> getSingle(rowMapper: RowMapper<T?>, defaultValue: T?): T? {
-        delegate.getConnection().use { return delegate.getSingle(this, it, rowMapper, defaultValue) }
+        return fromCache("singleOrDefault", rowMapper, defaultValue, null) {
+            delegate.getConnection(Intent.READ).use { delegate.getSingle(this, it, rowMapper, defaultValue) }
+        }
+    }
+
+    /**
+     * Asynchronously returns a list of objects generated from the ResultSet.  The query runs on the executor set using
+     * `setAsyncExecutor` (by default a new virtual thread).  Cancelling the returned future (or completing it
+     * exceptionally, e.g. using `orTimeout`) cancels the running statement.  The SQLBuilder must not be modified until
+     * the future is completed.
+     * @param connection The Connection object from which the PreparedStatement object is created.  It must not be used
+     * by another thread until the future is completed
+     * @param rowMapper The lambda called per row to produce a matching list item.
+     * @return the future list of the items returned from the mapping lambda
+     */
+    fun <T> getListAsync(connection: Connection, rowMapper: RowMapper<T>): CompletableFuture<List<T>> {
+        return async { getList(connection, rowMapper) }
+    }
+
+    /**
+     * Asynchronously returns a list of objects generated from the ResultSet using a connection of the
+     * ConnectionProvider.  Within `withConnection` or `inTransaction`, the query uses the connection of the scope
+     * instead, and the scope must not end before the future is completed.  See `getListAsync(connection, rowMapper)`.
+     * @param rowMapper The lambda called per row to produce a matching list item.
+     * @return the future list of the items returned from the mapping lambda
+     */
+    fun <T> getListAsync(rowMapper: RowMapper<T>): CompletableFuture<List<T>> {
+        return async { getList(rowMapper) }
+    }
+
+    /**
+     * Asynchronously returns an object generated from the first row of the ResultSet.  See
+     * `getListAsync(connection, rowMapper)`.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param rowMapper The lambda called one the first row to produce a matching item.
+     * @return the future Optional containing the item returned from the mapping lambda, if any
+     */
+    fun <T : Any> getSingleAsync(connection: Connection, rowMapper: RowMapper<T?>): CompletableFuture<Optional<T>> {
+        return async { getSingle(connection, rowMapper) }
+    }
+
+    /**
+     * Asynchronously returns an object generated from the first row of the ResultSet using a connection of the
+     * ConnectionProvider.  See `getListAsync(rowMapper)`.
+     * @param rowMapper The lambda called one the first row to produce a matching item.
+     * @return the future Optional containing the item returned from the mapping lambda, if any
+     */
+    fun <T : Any> getSingleAsync(rowMapper: RowMapper<T?>): CompletableFuture<Optional<T>> {
+        return async { getSingle(rowMapper) }
+    }
+
+    /**
+     * Asynchronously returns a map of objects generated from the ResultSet.  See `getListAsync(connection, rowMapper)`.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param rowMapper The lambda called per row to produce a map entry.
+     * @return the future map of the entries returned from the mapping lambda
+     */
+    fun <K, V> getMapAsync(connection: Connection, rowMapper: RowMapper<Map.Entry<K, V?>>): CompletableFuture<Map<K, V?>> {
+        return async { getMap(connection, rowMapper) }
+    }
+
+    /**
+     * Asynchronously returns a map of objects generated from the ResultSet using a connection of the
+     * ConnectionProvider.  See `getListAsync(rowMapper)`.
+     * @param rowMapper The lambda called per row to produce a map entry.
+     * @return the future map of the entries returned from the mapping lambda
+     */
+    fun <K, V> getMapAsync(rowMapper: RowMapper<Map.Entry<K, V?>>): CompletableFuture<Map<K, V?>> {
+        return async { getMap(rowMapper) }
+    }
+
+    /**
+     * Asynchronously executes the SQL statement.  See `getListAsync(connection, rowMapper)`.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @return the future result of executeUpdate of that statement
+     */
+    fun executeAsync(connection: Connection): CompletableFuture<Int> {
+        return async { execute(connection) }
+    }
+
+    /**
+     * Asynchronously executes the SQL statement using a connection of the ConnectionProvider.  See
+     * `getListAsync(rowMapper)`.
+     * @return the future result of executeUpdate of that statement
+     */
+    fun executeAsync(): CompletableFuture<Int> {
+        return async { execute() }
+    }
+
+    private fun <T> async(block: () -> T): CompletableFuture<T> {
+        // The handle of this call is bound to the executing thread and not stored in this SQLBuilder object, which can
+        // be used by other calls in the meantime
+        val handle = CancelHandle()
+        val future = CompletableFuture<T>()
+        // cancel and orTimeout both complete the future exceptionally
+        future.whenComplete { _, ex -> if (ex != null) handle.cancel() }
+        // Connection-less calls within withConnection or inTransaction use the connection of the scope
+        val scoped = ConnectionScope.propagate(block)
+        try {
+            asyncExecutor.execute {
+                try {
+                    if (!future.isDone) {
+                        future.complete(handle.bind(scoped))
+                    }
+                } catch (e: Throwable) {
+                    future.completeExceptionally(e)
+                }
+            }
+        } catch (e: RejectedExecutionException) {
+            future.completeExceptionally(e)
+        }
+        return future
     }
 
     // We need to close the implicitly created Statement from the getResultSet
     // method below.  Instead of asking the caller to remember this, we wrap the
     // ResultSet and do that for the caller.  This also allow to use
-    // getResultSet in try expressions
-    private class WrappedResultSet(private var rs: ResultSet?, private val scope: Scope) : InvocationHandler {
+    // getResultSet in try expressions.  All other methods are delegated using
+    // plain calls (instead of reflection through a java.lang.reflect.Proxy).
+    private class WrappedResultSet(private val rs: ResultSet, private val scope: Scope) : ResultSet by rs {
         enum class Scope {
             ResultSet, Statement, Connection
         }
 
-        @Throws(Throwable::class)
-        override fun invoke(proxy: Any, method: Method, args: Array<out Any?>?): Any? {
+        private var closed = false
+
+        @Throws(SQLException::class)
+        override fun close() {
             // Warning: we have to go through the code below even is
             // rs.isClosed() is true because we still would need to close the
             // statement and connection.  Also, Oracle's ResultSet.next()
-            // implicitly closes the ResultSet when it returns false (bypassing
-            // this proxy method).
-            if (rs == null) {
-                return null
-            }
-
-            if (method.name == "close") {
-                val stmt: Statement?
-                var conn: Connection? = null
-                when (scope) {
-                    Scope.Connection -> {
-                        stmt = rs!!.statement
-                        if (stmt != null) {
-                            conn = stmt.connection
-                        }
-                    }
-                    Scope.Statement -> stmt = rs!!.statement
-                    else -> stmt = null
-                }
-                close(rs, stmt, conn)
-                rs = null
-                return null
+            // implicitly closes the ResultSet when it returns false.
+            if (closed) {
+                return
             }
+            closed = true
+            val stmt: Statement? = if (scope == Scope.ResultSet) null else rs.statement
+            val conn: Connection? = if (scope == Scope.Connection) stmt?.connection else null
+            close(rs, stmt, conn)
+        }
 
-            return try {
-                if (args != null) {
-                    method.invoke(rs, *args)
-                } else {
-                    method.invoke(rs)
-                }
-            } catch (e: InvocationTargetException) {
-                throw e.cause ?: e
-            }
+        @Throws(SQLException::class)
+        override fun isClosed(): Boolean {
+            return closed || rs.isClosed
         }
     }
 
@@ -1158,7 +1855,17 @@ class SQLBuilder {
 
     companion object {
         private val jdbcProvider: SQLBuilderProvider = JdbcSQLBuilderProvider()
-        private var delegate = jdbcProvider
+        internal var delegate = jdbcProvider
+            private set
+        private const val DEFAULT_BATCH_SIZE = 1000
+
+        // The bound names of a statement are normally a small set of table, view and column names. The cache is thus
+        // simply cleared when it gets full.
+        private const val NAME_CACHE_SIZE = 4096
+        private val unquotedNames = ConcurrentHashMap<String, String>()
+        private val quotedNames = ConcurrentHashMap<String, String>()
+        private val simpleName = Regex("""[A-Za-z][A-Za-z\d_.]*|"[^"]+"""")
+        private val aliasSeparator = Regex("""\s+(?i:as\s+)?""")
 
         @JvmStatic
         fun setDelegate(delegate: SQLBuilderProvider) {
@@ -1170,8 +1877,143 @@ class SQLBuilder {
             delegate = jdbcProvider
         }
 
+        // The hash strategy used for Masked values
+        @Volatile
+        private var maskHash: MaskHash = MaskHash.MD5
+
+        @JvmStatic
+        fun setMaskHash(maskHash: MaskHash) {
+            Companion.maskHash = maskHash
+        }
+
+        @JvmStatic
+        fun resetMaskHash() {
+            maskHash = MaskHash.MD5
+        }
+
+        // The executor for the asynchronous methods, by default a new virtual thread per query
+        private val virtualThreads = Executor { Thread.ofVirtual().name("SQLBuilder-async").start(it) }
+
+        @Volatile
+        internal var asyncExecutor: Executor = virtualThreads
+            private set
+
+        @JvmStatic
+        fun setAsyncExecutor(executor: Executor) {
+            asyncExecutor = executor
+        }
+
+        @JvmStatic
+        fun resetAsyncExecutor() {
+            asyncExecutor = virtualThreads
+        }
+
+        // The binding of collection arguments for SQLBuilder objects without an explicit binding
+        @Volatile
+        private var defaultCollectionBinding = CollectionBinding.EXPAND
+
+        /**
+         * Sets the binding of collection arguments of IN-lists for all SQLBuilder objects without an explicit binding.
+         * @param collectionBinding The default binding
+         */
+        @JvmStatic
+        fun setCollectionBinding(collectionBinding: CollectionBinding) {
+            defaultCollectionBinding = collectionBinding
+        }
+
+        // The query timeout for SQLBuilder objects without an explicit timeout
+        @Volatile
+        internal var defaultTimeout: Duration? = null
+            private set
+
+        /**
+         * Sets the query timeout for all SQLBuilder objects without an explicit timeout.  The timeout is kept when the
+         * provider is changed (e.g. by enabling the mock provider).
+         * @param timeout The default timeout, or null for no default timeout
+         */
+        @JvmStatic
+        fun setDefaultTimeout(timeout: Duration?) {
+            require(timeout == null || !timeout.isNegative) { "The timeout must not be negative" }
+            defaultTimeout = timeout
+        }
+
+        /**
+         * Creates a group of queries which are executed concurrently using separate connections.
+         * @param parallelism The maximal number of concurrently executed queries and borrowed connections
+         * @return the new QueryGroup object
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun parallel(parallelism: Int = QueryGroup.DEFAULT_PARALLELISM): QueryGroup {
+            return QueryGroup(parallelism)
+        }
+
+        /**
+         * Executes an action with a connection which is used by all connection-less methods the current thread calls
+         * within the action.  A nested call reuses the connection of the outer call.  Otherwise, the connection is
+         * borrowed from the configured ConnectionProvider and closed after the action.
+         * <pre>`int count = SQLBuilder.withConnection(connection -> {
+         *     new SQLBuilder("insert into audit values(?)", event).execute();
+         *     return new SQLBuilder("select count(*) from audit").getInt(1, 0);
+         * });
+         * `</pre>
+         * @param action The action, which is called with the shared connection
+         * @return the result of the action
+         * @throws SQLException the exception thrown by the action or when borrowing the connection
+         */
+        @JvmStatic
+        @Throws(SQLException::class)
+        fun <T> withConnection(action: ConnectionAction<T>): T {
+            return ConnectionScope.withConnection(action)
+        }
+
+        /**
+         * Executes an action within a transaction like `withConnection`.  The outermost transaction disables
+         * auto-commit and commits when the action returns or rolls back when it throws.  A nested transaction uses a
+         * savepoint and only rolls back its own changes when it throws.  Connections borrowed by other threads (e.g. by
+         * the asynchronous methods or a QueryGroup) are not part of the transaction.
+         * @param action The action, which is called with the shared connection
+         * @return the result of the action
+         * @throws SQLException the exception thrown by the action, or when borrowing the connection or committing
+         */
+        @JvmStatic
+        @Throws(SQLException::class)
+        fun <T> inTransaction(action: ConnectionAction<T>): T {
+            return ConnectionScope.inTransaction(action)
+        }
+
+        /**
+         * Inserts rows into a table using the fastest method available for the connection: the COPY API for
+         * PostgreSQL, a JDBC batch for Oracle, and INSERT statements with multi-row VALUES lists (sized to stay below the
+         * bind parameter limits of the drivers) otherwise.  The rows are read one at a time from the iterator (e.g. from
+         * `Sequence.iterator()` or a cursor over a file), so they don't have to be held in memory.
+         * @param connection The Connection object used for inserting the rows
+         * @param table The name of the table
+         * @param columns The names of the columns
+         * @param rows The rows, each with one value per column
+         * @return the number of inserted rows
+         * @throws SQLException the exception thrown when inserting the rows
+         */
+        @JvmStatic
+        @Throws(SQLException::class)
+        fun bulkInsert(connection: Connection, table: String, columns: List<String>, rows: Iterator<List<Any?>>): Long {
+            return BulkInsert.insert(connection, table, columns, rows)
+        }
+
+        /**
+         * Inserts rows into a table using a connection from the configured ConnectionProvider.  See
+         * `bulkInsert(connection, table, columns, rows)`.
+         */
+        @JvmStatic
+        @Throws(SQLException::class)
+        fun bulkInsert(table: String, columns: List<String>, rows: Iterator<List<Any?>>): Long {
+            delegate.getConnection(Intent.WRITE).use { return BulkInsert.insert(it, table, columns, rows) }
+        }
+
         /**
-         * Returns a Connection object created from a configured ConnectionProvider.
+         * Returns a Connection object created from a configured ConnectionProvider, or the connection bound by an
+         * enclosing `withConnection` or `inTransaction` call.  The connection is requested with the WRITE intent (see
+         * `ConnectionProvider.Intent`).
          * @return The Connection object
          * @throws SQLException the exception thrown when generating the Connection object
          */
@@ -1186,6 +2028,13 @@ class SQLBuilder {
             return Masked(data)
         }
 
+        @JvmStatic
+        @JvmOverloads
+        fun batchItem(name: String, value: Any? = null): BatchItem {
+            require(value !is Collection<*>) { "Batch item values must not be collections" }
+            return BatchItem(name, value)
+        }
+
         @JvmStatic
         fun <K, V> entry(key: K, value: V): Map.Entry<K, V> {
             return SimpleImmutableEntry(key, value)
@@ -1267,22 +2116,34 @@ class SQLBuilder {
         @Throws(IllegalArgumentException::class)
         fun nameQuote(name: String?, noQuotes: Boolean = true): String {
             requireNotNull(name) { "Object name is null" }
-            if (name.matches(Regex("""[A-Za-z][A-Za-z\d_.]*|"[^"]+""""))) {
+            // Only valid names are cached: invalid names throw and are thus not added to the cache
+            val cache = if (noQuotes) unquotedNames else quotedNames
+            return cache[name] ?: quote(name, noQuotes).also {
+                if (cache.size >= NAME_CACHE_SIZE) {
+                    cache.clear()
+                }
+                cache[name] = it
+            }
+        }
+
+        private fun quote(name: String, noQuotes: Boolean): String {
+            if (simpleName.matches(name)) {
                 return name
             }
             // allow table and column aliases.  Both real name and alias must be quoted
-            val alias = name.split(Regex("""\s+(?i:as\s+)?"""), 2)
+            val alias = name.split(aliasSeparator, 2)
             if (alias.size == 2) {
                 // found alias.  column aliases have an optional " as " prefix but table aliases does not allow this.
                 // Therefore, we do not include the " as " so that we don't have to distinguish the 2 cases.
-                return nameQuote(alias[0], noQuotes) + " " + nameQuote(alias[1], noQuotes)
+                return quote(alias[0], noQuotes) + " " + quote(alias[1], noQuotes)
             }
             require(!(noQuotes || name.indexOf('"') != -1)) { """Object name "$name" contains invalid characters""" }
             return """"$name""""
         }
 
         /**
-         * This function closes AutoCloseable objects.
+         * This function closes AutoCloseable objects.  Statements also free the arrays bound for collection parameters
+         * (see `CollectionBinding`).
          * @return true is all non-null resources could be closed, false otherwise
          */
         @JvmStatic
@@ -1290,6 +2151,9 @@ class SQLBuilder {
             var allClosed = true
             for (resource in resources) {
                 if (resource != null) {
+                    if (resource is Statement) {
+                        CollectionParameter.free(resource)
+                    }
                     try {
                         resource.close()
                     } catch (e: Exception) {
@@ -1308,11 +2172,7 @@ class SQLBuilder {
          */
         @JvmStatic
         fun wrapStatement(rs: ResultSet): ResultSet {
-            return Proxy.newProxyInstance(
-                ResultSet::class.java.classLoader,
-                arrayOf<Class<*>>(ResultSet::class.java),
-                WrappedResultSet(rs, WrappedResultSet.Scope.Statement)
-            ) as ResultSet
+            return WrappedResultSet(rs, WrappedResultSet.Scope.Statement)
         }
 
         /**
@@ -1322,11 +2182,7 @@ class SQLBuilder {
          */
         @JvmStatic
         fun wrapConnection(rs: ResultSet): ResultSet {
-            return Proxy.newProxyInstance(
-                ResultSet::class.java.classLoader,
-                arrayOf<Class<*>>(ResultSet::class.java),
-                WrappedResultSet(rs, WrappedResultSet.Scope.Connection)
-            ) as ResultSet
+            return WrappedResultSet(rs, WrappedResultSet.Scope.Connection)
         }
     }
 }
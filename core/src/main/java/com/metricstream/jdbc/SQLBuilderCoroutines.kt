@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+@file:JvmName("SQLBuilderCoroutines")
+
+package com.metricstream.jdbc
+
+import java.sql.Connection
+import java.util.Optional
+import kotlin.coroutines.CoroutineContext
+import kotlinx.coroutines.asContextElement
+import kotlinx.coroutines.future.await
+
+// Suspending variants of the asynchronous SQLBuilder methods.  They require kotlinx-coroutines-core on the classpath,
+// which SQLBuilder itself only uses at compile time.  Cancelling the calling coroutine cancels the running statement.
+
+/**
+ * Suspending variant of `getListAsync(connection, rowMapper)`
+ */
+suspend fun <T> SQLBuilder.awaitList(connection: Connection, rowMapper: SQLBuilder.RowMapper<T>): List<T> {
+    return getListAsync(connection, rowMapper).await()
+}
+
+/**
+ * Suspending variant of `getListAsync(rowMapper)`
+ */
+suspend fun <T> SQLBuilder.awaitList(rowMapper: SQLBuilder.RowMapper<T>): List<T> {
+    return getListAsync(rowMapper).await()
+}
+
+/**
+ * Suspending variant of `getSingleAsync(connection, rowMapper)`
+ */
+suspend fun <T : Any> SQLBuilder.awaitSingle(connection: Connection, rowMapper: SQLBuilder.RowMapper<T?>): Optional<T> {
+    return getSingleAsync(connection, rowMapper).await()
+}
+
+/**
+ * Suspending variant of `getSingleAsync(rowMapper)`
+ */
+suspend fun <T : Any> SQLBuilder.awaitSingle(rowMapper: SQLBuilder.RowMapper<T?>): Optional<T> {
+    return getSingleAsync(rowMapper).await()
+}
+
+/**
+ * Suspending variant of `getMapAsync(connection, rowMapper)`
+ */
+suspend fun <K, V> SQLBuilder.awaitMap(connection: Connection, rowMapper: SQLBuilder.RowMapper<Map.Entry<K, V?>>): Map<K, V?> {
+    return getMapAsync(connection, rowMapper).await()
+}
+
+/**
+ * Suspending variant of `getMapAsync(rowMapper)`
+ */
+suspend fun <K, V> SQLBuilder.awaitMap(rowMapper: SQLBuilder.RowMapper<Map.Entry<K, V?>>): Map<K, V?> {
+    return getMapAsync(rowMapper).await()
+}
+
+/**
+ * Suspending variant of `executeAsync(connection)`
+ */
+suspend fun SQLBuilder.awaitExecute(connection: Connection): Int {
+    return executeAsync(connection).await()
+}
+
+/**
+ * Suspending variant of `executeAsync()`
+ */
+suspend fun SQLBuilder.awaitExecute(): Int {
+    return executeAsync().await()
+}
+
+/**
+ * Returns a coroutine context element which binds the connection of the enclosing `SQLBuilder.withConnection` or
+ * `SQLBuilder.inTransaction` call to coroutines started with it (e.g. `runBlocking(connectionContext()) { ... }`).  The
+ * connection-less suspending methods called by these coroutines also use that connection.  The coroutines must
+ * complete before the enclosing call returns.
+ */
+fun connectionContext(): CoroutineContext.Element {
+    return ConnectionScope.binding.asContextElement()
+}
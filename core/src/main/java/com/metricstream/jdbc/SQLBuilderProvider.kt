@@ -5,6 +5,7 @@ package com.metricstream.jdbc
 
 import kotlin.Throws
 import java.sql.SQLException
+import java.sql.SQLFeatureNotSupportedException
 import java.sql.ResultSet
 import java.math.BigDecimal
 import java.time.OffsetDateTime
@@ -14,8 +15,16 @@ import java.sql.Connection
 import java.sql.Date
 import java.sql.Timestamp
 import java.util.Optional
+import java.util.Spliterator
+import java.util.Spliterators
+import java.util.function.Consumer
+import java.util.stream.Stream
+import java.util.stream.StreamSupport
 
 interface SQLBuilderProvider {
+    // Members added after 4.0.0 have default implementations so that existing providers keep compiling.  Those based
+    // on getResultSet lack the optimizations of the JDBC provider, but not its semantics.
+
     @Throws(SQLException::class)
     fun getResultSet(
         sqlBuilder: SQLBuilder,
@@ -173,6 +182,16 @@ interface SQLBuilderProvider {
     @Throws(SQLException::class)
     fun execute(sqlBuilder: SQLBuilder, connection: Connection, vararg keyColumns: String): ResultSet
 
+    @Throws(SQLException::class)
+    fun addBatch(sqlBuilder: SQLBuilder, connection: Connection) {
+        throw SQLFeatureNotSupportedException("${javaClass.name} does not support batches")
+    }
+
+    @Throws(SQLException::class)
+    fun executeBatch(sqlBuilder: SQLBuilder, connection: Connection): LongArray {
+        throw SQLFeatureNotSupportedException("${javaClass.name} does not support batches")
+    }
+
     @Throws(SQLException::class)
     fun <T> getList(
         sqlBuilder: SQLBuilder,
@@ -187,6 +206,63 @@ interface SQLBuilderProvider {
         rowMapper: SQLBuilder.RowMapper<T?>
     ): List<T?>
 
+    @Throws(SQLException::class)
+    fun getIntList(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        columnNumber: Int
+    ): IntList {
+        return getResultSet(sqlBuilder, connection, false).use { getIntList(it, columnNumber) }
+    }
+
+    @Throws(SQLException::class)
+    fun getLongList(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        columnNumber: Int
+    ): LongList {
+        return getResultSet(sqlBuilder, connection, false).use { getLongList(it, columnNumber) }
+    }
+
+    @Throws(SQLException::class)
+    fun getDoubleList(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        columnNumber: Int
+    ): DoubleList {
+        return getResultSet(sqlBuilder, connection, false).use { getDoubleList(it, columnNumber) }
+    }
+
+    @Throws(SQLException::class)
+    fun forEach(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        rowConsumer: SQLBuilder.RowConsumer
+    ) {
+        getResultSet(sqlBuilder, connection, false).use { forEach(it, rowConsumer) }
+    }
+
+    @Throws(SQLException::class)
+    fun <A> fold(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        initial: A,
+        rowFolder: SQLBuilder.RowFolder<A>
+    ): A {
+        return getResultSet(sqlBuilder, connection, false).use { fold(it, initial, rowFolder) }
+    }
+
+    @Throws(SQLException::class)
+    fun <T> stream(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        rowMapper: SQLBuilder.RowMapper<T>,
+        closeConnection: Boolean
+    ): Stream<T> {
+        // Closing the ResultSet also closes its statement, and its connection if closeConnection is true
+        return stream(getResultSet(sqlBuilder, connection, closeConnection), rowMapper)
+    }
+
     @Throws(SQLException::class)
     fun <K, V> getMap(
         sqlBuilder: SQLBuilder,
@@ -195,6 +271,28 @@ interface SQLBuilderProvider {
         withNull: Boolean = false
     ): Map<K, V?>
 
+    @Throws(SQLException::class)
+    fun <V> getLongKeyedMap(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        keyColumn: Int,
+        rowMapper: SQLBuilder.RowMapper<V?>,
+        withNull: Boolean
+    ): LongKeyedMap<V?> {
+        return getResultSet(sqlBuilder, connection, false).use { getLongKeyedMap(it, keyColumn, rowMapper, withNull) }
+    }
+
+    @Throws(SQLException::class)
+    fun <V> getIntKeyedMap(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        keyColumn: Int,
+        rowMapper: SQLBuilder.RowMapper<V?>,
+        withNull: Boolean
+    ): IntKeyedMap<V?> {
+        return getResultSet(sqlBuilder, connection, false).use { getIntKeyedMap(it, keyColumn, rowMapper, withNull) }
+    }
+
     @Throws(SQLException::class)
     fun <T : Any> getSingle(
         sqlBuilder: SQLBuilder,
@@ -260,7 +358,140 @@ interface SQLBuilderProvider {
         return map
     }
 
+    @Throws(SQLException::class)
+    fun <V> getLongKeyedMap(
+        rs: ResultSet,
+        keyColumn: Int,
+        rowMapper: SQLBuilder.RowMapper<V?>,
+        withNull: Boolean
+    ): LongKeyedMap<V?> {
+        val map = LongKeyedMap<V?>()
+        while (rs.next()) {
+            val key = rs.getLong(keyColumn)
+            check(!rs.wasNull()) { "Null as map key is unsupported" }
+            val value = rowMapper.map(rs)
+            if (withNull || value != null) {
+                check(map.putIfAbsent(key, value)) { "Duplicate map key '$key' is unsupported" }
+            }
+        }
+        return map
+    }
+
+    @Throws(SQLException::class)
+    fun <V> getIntKeyedMap(
+        rs: ResultSet,
+        keyColumn: Int,
+        rowMapper: SQLBuilder.RowMapper<V?>,
+        withNull: Boolean
+    ): IntKeyedMap<V?> {
+        val map = IntKeyedMap<V?>()
+        while (rs.next()) {
+            val key = rs.getInt(keyColumn)
+            check(!rs.wasNull()) { "Null as map key is unsupported" }
+            val value = rowMapper.map(rs)
+            if (withNull || value != null) {
+                check(map.putIfAbsent(key, value)) { "Duplicate map key '$key' is unsupported" }
+            }
+        }
+        return map
+    }
+
+    @Throws(SQLException::class)
+    fun getIntList(rs: ResultSet, columnNumber: Int): IntList {
+        val list = IntList()
+        while (rs.next()) {
+            val value = rs.getInt(columnNumber)
+            if (rs.wasNull()) list.addNull() else list.add(value)
+        }
+        return list
+    }
+
+    @Throws(SQLException::class)
+    fun getLongList(rs: ResultSet, columnNumber: Int): LongList {
+        val list = LongList()
+        while (rs.next()) {
+            val value = rs.getLong(columnNumber)
+            if (rs.wasNull()) list.addNull() else list.add(value)
+        }
+        return list
+    }
+
+    @Throws(SQLException::class)
+    fun getDoubleList(rs: ResultSet, columnNumber: Int): DoubleList {
+        val list = DoubleList()
+        while (rs.next()) {
+            val value = rs.getDouble(columnNumber)
+            if (rs.wasNull()) list.addNull() else list.add(value)
+        }
+        return list
+    }
+
+    @Throws(SQLException::class)
+    fun forEach(
+        rs: ResultSet,
+        rowConsumer: SQLBuilder.RowConsumer
+    ) {
+        while (rs.next()) {
+            rowConsumer.accept(rs)
+        }
+    }
+
+    @Throws(SQLException::class)
+    fun <A> fold(
+        rs: ResultSet,
+        initial: A,
+        rowFolder: SQLBuilder.RowFolder<A>
+    ): A {
+        var accumulator = initial
+        while (rs.next()) {
+            accumulator = rowFolder.fold(accumulator, rs)
+        }
+        return accumulator
+    }
+
+    /**
+     * Returns a lazy stream of objects generated from the ResultSet.  Rows are only read when the stream requests them.
+     * The resources are closed when the stream is closed, when the last row was read, or when the rowMapper throws.
+     */
+    fun <T> stream(
+        rs: ResultSet,
+        rowMapper: SQLBuilder.RowMapper<T>,
+        vararg resources: AutoCloseable
+    ): Stream<T> {
+        val spliterator = object : Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED) {
+            override fun tryAdvance(action: Consumer<in T>): Boolean {
+                var completed = false
+                try {
+                    if (rs.next()) {
+                        action.accept(rowMapper.map(rs))
+                        completed = true
+                    }
+                } finally {
+                    if (!completed) {
+                        SQLBuilder.close(rs, *resources)
+                    }
+                }
+                return completed
+            }
+        }
+        return StreamSupport.stream(spliterator, false).onClose { SQLBuilder.close(rs, *resources) }
+    }
+
     val connectionProvider: ConnectionProvider
 
-    fun getConnection() = connectionProvider.getConnection()
+    /**
+     * Returns the connection bound by `SQLBuilder.withConnection` or `SQLBuilder.inTransaction`, or a new connection
+     * for arbitrary statements from the ConnectionProvider.  The connection is requested as WRITE because it can be
+     * used for any statement, so the reads of the current thread use READ_AFTER_WRITE for the following
+     * `ConnectionProvider.readAfterWriteWindow`.
+     */
+    fun getConnection() = getConnection(ConnectionProvider.Intent.WRITE)
+
+    /**
+     * Returns the connection bound by `SQLBuilder.withConnection` or `SQLBuilder.inTransaction`, or a new connection
+     * for a statement with the given intent from the ConnectionProvider
+     */
+    fun getConnection(intent: ConnectionProvider.Intent): Connection {
+        return ConnectionScope.current() ?: connectionProvider.getConnection(ConnectionScope.intent(intent))
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.Connection
+import java.sql.SQLException
+import java.time.Duration
+
+/**
+ * Immutable precompiled SQL statement
+ *
+ * A SQLTemplate holds the static part of a query: the statement with all name bindings applied, the positions of
+ * its placeholders, the ResultSet options, and the collection binding, result cache and single-flight settings.  It is
+ * created once using `SQLBuilder.compile()` and can then be shared between threads, e.g. by storing it in a static
+ * field.  Every use only supplies the parameter values and thus avoids rebuilding, binding and rescanning the
+ * statement.
+ *
+ * <pre>
+ * `static final SQLTemplate BY_DEPARTMENT = new SQLBuilder("select name from ${t} where department in (?)")
+ *     .bind("t", "employees").compile();
+ * List<String> names = BY_DEPARTMENT.builder(departments).getList(connection, rs -> rs.getString(1));
+ * </pre>
+ */
+class SQLTemplate internal constructor(
+    /**
+     * The SQL statement with all name bindings applied
+     */
+    val sql: String,
+    val resultSetType: Int,
+    val resultSetConcurrency: Int,
+    val fetchSize: Int,
+    val maxRows: Int,
+    val timeout: Duration?,
+    internal val collectionBinding: SQLBuilder.CollectionBinding?,
+    internal val cachePolicy: ResultCache.Policy?,
+    internal val cacheScope: Any?,
+    internal val singleFlight: Boolean,
+) {
+    internal val placeholders: IntArray = SQLTokenizer.placeholders(sql)
+
+    /**
+     * The number of placeholders (i.e. the ? outside of literals and comments) in the statement
+     */
+    val parameterCount: Int
+        get() = placeholders.size
+
+    /**
+     * Creates a new SQLBuilder object from this template.  The SQLBuilder object can be further modified without
+     * affecting the template.
+     * @param args The parameters for the statement
+     * @return the SQLBuilder object
+     */
+    fun builder(vararg args: Any?): SQLBuilder {
+        return SQLBuilder(this, args)
+    }
+
+    /**
+     * Executes the statement.
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param args The parameters for the statement
+     * @return The result of executeUpdate of that statement
+     * @throws SQLException the exception thrown when executing the query
+     */
+    @Throws(SQLException::class)
+    fun execute(connection: Connection, vararg args: Any?): Int {
+        return SQLBuilder(this, args).execute(connection)
+    }
+
+    /**
+     * Returns a list of objects generated from the ResultSet
+     * @param connection The Connection object from which the PreparedStatement object is created
+     * @param rowMapper The lambda called per row to produce a matching list item.
+     * @param args The parameters for the statement
+     * @return The list of generated items
+     * @throws SQLException the exception thrown when generating or accessing the ResultSet object
+     */
+    @Throws(SQLException::class)
+    fun <T> getList(connection: Connection, rowMapper: SQLBuilder.RowMapper<T>, vararg args: Any?): List<T> {
+        return SQLBuilder(this, args).getList(connection, rowMapper)
+    }
+
+    override fun toString(): String {
+        return sql
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.SQLException
+import com.metricstream.jdbc.SQLBuilder.CollectionBinding
+
+/**
+ * Minimal SQL scanner used for placeholder expansion and name binding.
+ *
+ * The scanner understands just enough SQL to find the JDBC placeholders (i.e. the `?`) of a statement: it skips over
+ * string literals ('...'), quoted identifiers ("..."), line comments (-- ...) and block comments. JDBC escape
+ * sequences like `{fn ...}`, `{d '...'}` or `{call ...}` are scanned like regular SQL, i.e. placeholders within
+ * them are found and literals within them are skipped.  Vendor specific quoting (e.g. Oracle's `q'[...]'` or
+ * PostgreSQL's `$$...$$`) is not supported.
+ */
+internal object SQLTokenizer {
+    // Oracle allows at most 1000 elements per IN-list
+    private const val MAX_IN_LIST = 1000
+
+    /**
+     * Returns the position of the next placeholder.
+     * @param sql The SQL statement
+     * @param from The position from which to start the search.  This must not be inside a literal or a comment.
+     * @return the position of the next placeholder at or after from, or -1 if there is none
+     */
+    fun nextPlaceholder(sql: CharSequence, from: Int): Int {
+        val length = sql.length
+        var pos = from
+        while (pos < length) {
+            val c = sql[pos]
+            pos = when {
+                c == '?' -> return pos
+                c == '\'' || c == '"' -> skipTo(sql, c, pos + 1)
+                c == '-' && pos + 1 < length && sql[pos + 1] == '-' -> skipTo(sql, '\n', pos + 2)
+                c == '/' && pos + 1 < length && sql[pos + 1] == '*' -> skipTo(sql, "*/", pos + 2)
+                else -> pos + 1
+            }
+        }
+        return -1
+    }
+
+    // Returns the position after the next occurrence of end, or the length of sql if end does not occur.
+    // Doubled quotes within literals (e.g. 'it''s') are handled implicitly as two consecutive literals.
+    private fun skipTo(sql: CharSequence, end: Char, from: Int): Int {
+        val pos = sql.indexOf(end, from)
+        return if (pos == -1) sql.length else pos + 1
+    }
+
+    private fun skipTo(sql: CharSequence, end: String, from: Int): Int {
+        val pos = sql.indexOf(end, from)
+        return if (pos == -1) sql.length else pos + end.length
+    }
+
+    /**
+     * Returns the positions of all placeholders of a statement.
+     * @param sql The SQL statement
+     * @return the positions of the placeholders in ascending order
+     */
+    fun placeholders(sql: CharSequence): IntArray {
+        val positions = mutableListOf<Int>()
+        var pos = nextPlaceholder(sql, 0)
+        while (pos != -1) {
+            positions.add(pos)
+            pos = nextPlaceholder(sql, pos + 1)
+        }
+        return positions.toIntArray()
+    }
+
+    /**
+     * Expands the placeholders of a statement.  Every placeholder which corresponds to a collection argument is
+     * replaced by as many placeholders as the collection has elements.  The statement is scanned at most once, and
+     * both the returned statement and the expanded arguments are presized before the scan.
+     * @param sql The SQL statement
+     * @param arguments The arguments for the placeholders of the statement
+     * @param expanded The list to which the flattened arguments are added
+     * @param placeholders The positions of the placeholders as returned by `placeholders(sql)`.  If null, the statement
+     * is scanned for placeholders
+     * @param binding The binding of collection arguments which are the only element of an IN-list
+     * @return the expanded statement
+     * @throws SQLException if an argument is an empty collection
+     */
+    @Throws(SQLException::class)
+    fun expand(
+        sql: CharSequence,
+        arguments: List<Any?>,
+        expanded: MutableList<Any?>,
+        placeholders: IntArray? = null,
+        binding: CollectionBinding = CollectionBinding.EXPAND
+    ): StringBuilder {
+        var additional = 0
+        for (arg in arguments) {
+            if (arg is Collection<*> && arg.size > 1) {
+                additional += arg.size - 1
+            }
+        }
+        (expanded as? ArrayList<Any?>)?.ensureCapacity(expanded.size + arguments.size + additional)
+        // every additional placeholder needs 2 characters: ",?"
+        val expandedStatement = StringBuilder(sql.length + 2 * additional)
+        var start = 0
+        for (index in arguments.indices) {
+            val arg = arguments[index]
+            val pos = if (placeholders == null) nextPlaceholder(sql, start) else placeholders.getOrElse(index) { -1 }
+            if (pos == -1) {
+                // We ran out of placeholders (i.e. we have extra parameters).
+                // We do not consider that as a bug (though one could argue this
+                // should result in a warning).
+                break
+            }
+            expandedStatement.append(sql, start, pos + 1)
+            start = pos + 1
+            if (arg is Collection<*>) {
+                if (arg.isEmpty()) {
+                    // This is deliberately not an IllegalArgumentException: all callers only declare (and therefore
+                    // only catch) SQLException, and an empty IN-list is rejected by the database in the same way
+                    throw SQLException("Collection parameters must contain at least one element")
+                }
+                val next = if (binding == CollectionBinding.EXPAND) -1 else bind(sql, pos, arg, binding, expandedStatement, expanded)
+                if (next == -1) {
+                    // The statement already contains one "?", therefore we only add size - 1 additional placeholders
+                    repeat(arg.size - 1) { expandedStatement.append(",?") }
+                    expanded.addAll(arg)
+                } else {
+                    start = next
+                }
+            } else {
+                expanded.add(arg)
+            }
+        }
+        expandedStatement.append(sql, start, sql.length)
+        return expandedStatement
+    }
+
+    // The IN-list around a placeholder which is the only element of the list.  keyword is the position of "in" (or of
+    // "not" for "not in") and close the position of the closing parenthesis.
+    private class InList(val keyword: Int, val negated: Boolean, val close: Int)
+
+    /**
+     * Binds a collection argument of an IN-list using a strategy other than EXPAND.  The expanded statement ends with
+     * the part of sql up to and including the placeholder at pos.
+     * @return the position in sql after the replaced part, or -1 if the collection must be expanded as usual
+     */
+    private fun bind(
+        sql: CharSequence,
+        pos: Int,
+        arg: Collection<*>,
+        binding: CollectionBinding,
+        statement: StringBuilder,
+        expanded: MutableList<Any?>
+    ): Int {
+        val list = inList(sql, pos) ?: return -1
+        // The position in statement which corresponds to position 0 in sql
+        val offset = statement.length - (pos + 1)
+        return when (binding) {
+            CollectionBinding.EXPAND -> -1
+            CollectionBinding.PADDED -> {
+                // 1, 2, 4, 8, ...: the last element is repeated, which does not change the result of the IN-list
+                val size = if (arg.size <= 2) arg.size else Integer.highestOneBit(arg.size - 1) shl 1
+                repeat(size - 1) { statement.append(",?") }
+                expanded.addAll(arg)
+                repeat(size - arg.size) { expanded.add(arg.last()) }
+                pos + 1
+            }
+            CollectionBinding.CHUNKED -> if (arg.size <= MAX_IN_LIST) -1 else chunk(sql, list, offset, arg, statement, expanded)
+            CollectionBinding.ANY_ARRAY, CollectionBinding.TABLE_ARRAY -> {
+                val parameter = CollectionParameter.of(arg, binding == CollectionBinding.TABLE_ARRAY) ?: return -1
+                if (binding == CollectionBinding.ANY_ARRAY) {
+                    statement.setLength(list.keyword + offset)
+                    statement.append(if (list.negated) "<> all(?" else "= any(?")
+                } else {
+                    statement.setLength(statement.length - 1)
+                    statement.append("select column_value from table(?)")
+                }
+                expanded.add(parameter)
+                pos + 1
+            }
+        }
+    }
+
+    // Replaces "operand in (?)" by "(operand in (?,...) or operand in (?,...))" with at most MAX_IN_LIST elements per list
+    private fun chunk(
+        sql: CharSequence,
+        list: InList,
+        offset: Int,
+        arg: Collection<*>,
+        statement: StringBuilder,
+        expanded: MutableList<Any?>
+    ): Int {
+        val end = skipSpace(sql, list.keyword - 1, -1) + 1
+        var begin = end
+        while (begin > 0 && (isWordChar(sql[begin - 1]) || sql[begin - 1] in ".\"$#")) {
+            begin--
+        }
+        if (begin == end) {
+            // e.g. a function call or a row value constructor which can't be repeated that easily
+            return -1
+        }
+        val operand = sql.substring(begin, end)
+        statement.setLength(begin + offset)
+        statement.append('(')
+        arg.chunked(MAX_IN_LIST).forEachIndexed { index, elements ->
+            if (index > 0) {
+                statement.append(if (list.negated) " and " else " or ")
+            }
+            statement.append(operand).append(if (list.negated) " not in (?" else " in (?")
+            repeat(elements.size - 1) { statement.append(",?") }
+            statement.append(')')
+            expanded.addAll(elements)
+        }
+        statement.append(')')
+        return list.close + 1
+    }
+
+    private fun inList(sql: CharSequence, pos: Int): InList? {
+        val close = skipSpace(sql, pos + 1, 1)
+        val open = skipSpace(sql, pos - 1, -1)
+        if (close >= sql.length || sql[close] != ')' || open < 0 || sql[open] != '(') {
+            return null
+        }
+        val end = skipSpace(sql, open - 1, -1)
+        if (!isWord(sql, end, "in")) {
+            return null
+        }
+        val before = skipSpace(sql, end - 2, -1)
+        return if (isWord(sql, before, "not")) InList(before - 2, true, close) else InList(end - 1, false, close)
+    }
+
+    // Returns the first position at or after (step 1) or before (step -1) from which is not a whitespace
+    private fun skipSpace(sql: CharSequence, from: Int, step: Int): Int {
+        var pos = from
+        while (pos >= 0 && pos < sql.length && sql[pos].isWhitespace()) {
+            pos += step
+        }
+        return pos
+    }
+
+    // Returns true if the word which ends at end is word (ignoring case)
+    private fun isWord(sql: CharSequence, end: Int, word: String): Boolean {
+        val start = end - word.length + 1
+        return start >= 0 &&
+            word.indices.all { sql[start + it].equals(word[it], ignoreCase = true) } &&
+            (start == 0 || !isWordChar(sql[start - 1]))
+    }
+
+    /**
+     * Replaces all the name bindings (i.e. `${name}` or `:{name}`) of a statement.  Unlike placeholders, name bindings
+     * are also replaced within literals and comments.  Replacement values are not scanned again.
+     * @param sql The SQL statement
+     * @param bindings The replacement values for the names
+     * @return the statement with all bound names replaced.  Names without a binding are left unchanged
+     */
+    fun bind(sql: CharSequence, bindings: Map<String, String>): StringBuilder {
+        val boundStatement = StringBuilder(sql.length + 16 * bindings.size)
+        var start = 0
+        var open = sql.indexOf('{', 1)
+        while (open != -1) {
+            val close = endOfName(sql, open + 1)
+            val prefix = sql[open - 1]
+            if ((prefix == '$' || prefix == ':') && close < sql.length && sql[close] == '}' && close > open + 1) {
+                val value = bindings[sql.substring(open + 1, close)]
+                if (value != null) {
+                    boundStatement.append(sql, start, open - 1).append(value)
+                    start = close + 1
+                }
+            }
+            open = sql.indexOf('{', open + 1)
+        }
+        boundStatement.append(sql, start, sql.length)
+        return boundStatement
+    }
+
+    // Returns the position of the first character after from which is not a word character [a-zA-Z_0-9]
+    private fun endOfName(sql: CharSequence, from: Int): Int {
+        var pos = from
+        while (pos < sql.length && isWordChar(sql[pos])) {
+            pos++
+        }
+        return pos
+    }
+
+    fun isWordChar(c: Char) = c in 'a'..'z' || c in 'A'..'Z' || c in '0'..'9' || c == '_'
+}
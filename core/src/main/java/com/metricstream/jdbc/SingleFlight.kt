@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.sql.SQLException
+import java.sql.SQLTimeoutException
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Deduplication of identical concurrent reads
+ *
+ * The first thread executing a query becomes its leader and executes it.  All threads which execute the same query
+ * within the same scope (see `ResultCache.Key`) before the leader finished wait for and return the result of the
+ * leader, or throw the same exception.  Lists and maps are therefore returned as unmodifiable views.  Followers wait at
+ * most for the timeout of their own SQLBuilder object and stop waiting when their own CancelHandle is cancelled.  If
+ * the leader was cancelled or timed out, its followers do not fail but execute the query again (with one of them as
+ * the new leader).  `waiting` is the number of executions waiting for a leader at the moment.
+ */
+object SingleFlight {
+    private val flights = ConcurrentHashMap<ResultCache.Key, CompletableFuture<Any?>>()
+    private val waitingCount = AtomicInteger()
+
+    /**
+     * The number of executions which currently wait for the result of an identical execution
+     */
+    @JvmStatic
+    val waiting: Int
+        get() = waitingCount.get()
+
+    // The result of a leader which was cancelled or timed out
+    private val RETRY = Any()
+
+    @Throws(SQLException::class)
+    internal fun <T> run(key: ResultCache.Key, sqlBuilder: SQLBuilder, query: () -> T): T {
+        while (true) {
+            val flight = CompletableFuture<Any?>()
+            val running = flights.putIfAbsent(key, flight) ?: return lead(key, flight, sqlBuilder, query)
+            val result = follow(running, sqlBuilder)
+            if (result !== RETRY) {
+                @Suppress("UNCHECKED_CAST")
+                return result as T
+            }
+        }
+    }
+
+    private fun <T> lead(key: ResultCache.Key, flight: CompletableFuture<Any?>, sqlBuilder: SQLBuilder, query: () -> T): T {
+        try {
+            return ResultCache.share(query()).also { flight.complete(it) }
+        } catch (e: Throwable) {
+            if (isCancellation(e, sqlBuilder)) flight.complete(RETRY) else flight.completeExceptionally(e)
+            throw e
+        } finally {
+            flights.remove(key, flight)
+        }
+    }
+
+    @Throws(SQLException::class)
+    private fun follow(running: CompletableFuture<Any?>, sqlBuilder: SQLBuilder): Any? {
+        // A separate future per follower, so that cancelling it does not affect the leader or the other followers
+        val waiting = running.thenApply { it }
+        val handle = CancelHandle.of(sqlBuilder)
+        handle?.attach(waiting)
+        val timeout = sqlBuilder.timeout ?: SQLBuilder.defaultTimeout
+        waitingCount.incrementAndGet()
+        try {
+            return if (timeout == null || timeout.isZero) waiting.get() else waiting.get(timeout.toNanos(), TimeUnit.NANOSECONDS)
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        } catch (e: CancellationException) {
+            throw CancelHandle.cancelled()
+        } catch (e: TimeoutException) {
+            throw SQLTimeoutException("The query exceeded its timeout of $timeout while waiting for an identical query")
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw SQLException(e)
+        } finally {
+            waitingCount.decrementAndGet()
+            handle?.detach(waiting)
+        }
+    }
+
+    // Returns true if the execution of the leader failed because it was cancelled or timed out
+    private fun isCancellation(e: Throwable, sqlBuilder: SQLBuilder): Boolean {
+        return e is SQLTimeoutException ||
+            e is InterruptedException ||
+            (e is SQLException && e.sqlState == CancelHandle.QUERY_CANCELED) ||
+            CancelHandle.of(sqlBuilder)?.isCancelled == true
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import java.time.Duration
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.LongSupplier
+import io.github.oshai.kotlinlogging.KotlinLogging
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * QueryListener which logs the statements whose execution took longer than a threshold
+ *
+ * A log entry contains the elapsed time, the number of rows, the fingerprint, the calling site outside of the
+ * `com.metricstream.jdbc` package and of the Java and Kotlin runtime, and the statement together with its arguments.
+ * The arguments are formatted like `SQLBuilder.toString`, but by default every value is masked and not only the
+ * `SQLBuilder.Masked` values.  Nothing is formatted for statements which are
+ * faster than the threshold, not sampled, or dropped by the rate limit.
+ * <pre>`QueryInstrumentation.addListener(new SlowQueryLog(Duration.ofMillis(500)));
+ * `</pre>
+ */
+class SlowQueryLog @JvmOverloads constructor(
+    /**
+     * The minimal total execution time of a logged statement
+     */
+    val threshold: Duration,
+    /**
+     * The fraction (between 0 and 1) of the slow statements which are considered for logging
+     */
+    val sampleRate: Double = 1.0,
+    /**
+     * The maximal number of log entries per second.  Additional slow statements are only counted, and that count is
+     * added to the next log entry
+     */
+    val maxPerSecond: Int = DEFAULT_MAX_PER_SECOND,
+    /**
+     * Whether all argument values are masked
+     */
+    val maskArguments: Boolean = true,
+    /**
+     * The source of the nanosecond time which determines the seconds of the rate limit.  Defaults to `System.nanoTime`
+     */
+    private val ticker: LongSupplier = LongSupplier { System.nanoTime() }
+) : QueryListener {
+    private val thresholdNanos = threshold.toNanos()
+    private val second = AtomicLong(-1)
+    private val logged = AtomicInteger()
+    private val suppressed = AtomicLong()
+
+    init {
+        require(!threshold.isNegative) { "The threshold must not be negative" }
+        require(sampleRate in 0.0..1.0) { "The sample rate must be between 0 and 1" }
+        require(maxPerSecond > 0) { "The maximal number of log entries per second must be positive" }
+    }
+
+    override fun onQuery(event: QueryEvent) {
+        if (event.totalNanos < thresholdNanos || !logger.isWarnEnabled()) {
+            return
+        }
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return
+        }
+        if (!acquire()) {
+            suppressed.incrementAndGet()
+            return
+        }
+        // The listener runs on the executing thread and thus can determine the caller
+        val site = callSite()
+        val dropped = suppressed.getAndSet(0)
+        logger.warn(event.exception) { format(event, site, dropped) }
+    }
+
+    // Returns whether the current second still allows a log entry
+    private fun acquire(): Boolean {
+        val now = ticker.asLong / TimeUnit.SECONDS.toNanos(1)
+        val current = second.get()
+        if (now != current && second.compareAndSet(current, now)) {
+            logged.set(0)
+        }
+        return logged.incrementAndGet() <= maxPerSecond
+    }
+
+    private fun format(event: QueryEvent, site: String?, dropped: Long): String {
+        val args = if (maskArguments) event.arguments.map { if (it is SQLBuilder.Masked) it else SQLBuilder.mask(it) } else event.arguments
+        val sb = StringBuilder(event.sql.length + 100)
+        sb.append("Slow query ").append(event.fingerprint)
+            .append(" took ").append(TimeUnit.NANOSECONDS.toMillis(event.totalNanos)).append(" ms")
+        if (event.rows >= 0) {
+            sb.append(", rows=").append(event.rows)
+        }
+        if (event.failed) {
+            sb.append(", failed")
+        }
+        if (site != null) {
+            sb.append(", at ").append(site)
+        }
+        if (dropped > 0) {
+            sb.append(", ").append(dropped).append(" slow queries not logged before")
+        }
+        sb.append(": ").append(event.sql).append("; args=").append(args)
+        return sb.toString()
+    }
+
+    private fun callSite(): String? {
+        return StackWalker.getInstance().walk { frames ->
+            frames.filter { frame -> internalPackages.none { frame.className.startsWith(it) } }
+                .findFirst()
+                .map { it.toString() }
+                .orElse(null)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_PER_SECOND = 10
+
+        // SQLBuilder itself, and the platform code it uses to run statements (e.g. streams or virtual threads)
+        private val internalPackages = listOf(
+            SlowQueryLog::class.java.packageName + ".",
+            "java.",
+            "jdk.",
+            "kotlin.",
+            "kotlinx.",
+        )
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright © 2026, MetricStream, Inc. All rights reserved.
+ */
+package com.metricstream.jdbc
+
+import com.metricstream.jdbc.SQLBuilder.Companion.close
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.SQLException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Opt-in cache for PreparedStatement objects
+ *
+ * When enabled (i.e. `maxSize` is greater than 0), the JDBC provider keeps up to `maxSize` idle PreparedStatement
+ * objects per Connection object and reuses them for statements with the same expanded SQL text, ResultSet type,
+ * concurrency and generated key columns.  This works with any JDBC driver and saves the driver side parsing and
+ * planning for statements which are executed repeatedly on the same connection.  The least recently used statement is
+ * closed when a connection exceeds the limit.  The cached statements of a connection are closed when `release` is
+ * called for the connection, or when the connection is found to be closed.  Closed connections are looked for at most
+ * once per minute while the cache is used.
+ *
+ * The cache is keyed by the Connection object passed to SQLBuilder.  Connection pools which hand out a new proxy
+ * object for every checkout and close its statements on return therefore only benefit within a single checkout.  The
+ * Connection objects handed out by the PooledConnectionProvider (and by `SQLBuilder.withConnection`) are instead
+ * looked through, i.e. their statements are cached for the physical connection behind them and are kept across
+ * checkouts.  The pool releases them when it closes the physical connection.  Statements whose ResultSet is handed to
+ * the caller by `getResultSet` are never cached, while the statement of `execute` with key columns is returned to the
+ * cache when the ResultSet of the generated keys is closed.  Batches return their statement after `executeBatch`.
+ */
+object StatementCache {
+    internal data class Key(
+        val sql: String,
+        val resultSetType: Int,
+        val resultSetConcurrency: Int,
+        val keyColumns: List<String> = emptyList(),
+    )
+
+    /**
+     * A Connection object which forwards to another connection which owns the statements, e.g. a pool checkout
+     */
+    internal interface Delegating {
+        val target: Connection
+    }
+
+    // Idle statements of a single connection in least recently used order
+    private class ConnectionCache : LinkedHashMap<Key, PreparedStatement>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Key, PreparedStatement>): Boolean {
+            if (size > limit) {
+                evictionCount.incrementAndGet()
+                close(eldest.value)
+                return true
+            }
+            return false
+        }
+
+        // Closes the least recently used statements which exceed a reduced limit
+        fun trim() {
+            synchronized(this) {
+                val iterator = values.iterator()
+                while (size > limit && iterator.hasNext()) {
+                    evictionCount.incrementAndGet()
+                    close(iterator.next())
+                    iterator.remove()
+                }
+            }
+        }
+
+        fun closeAll() {
+            synchronized(this) {
+                values.forEach { close(it) }
+                clear()
+            }
+        }
+    }
+
+    @Volatile
+    private var limit = 0
+    private val caches = ConcurrentHashMap<Connection, ConnectionCache>()
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+    private val evictionCount = AtomicLong()
+    private val PURGE_INTERVAL = TimeUnit.MINUTES.toNanos(1)
+    private val nextPurge = AtomicLong(System.nanoTime())
+
+    /**
+     * The maximum number of cached statements per connection.  A value of 0 (the default) disables the cache and
+     * closes all cached statements.  Reducing the value closes the least recently used statements above the new limit.
+     */
+    @JvmStatic
+    var maxSize: Int
+        get() = limit
+        set(value) {
+            require(value >= 0) { "The statement cache size must not be negative" }
+            val previous = limit
+            limit = value
+            if (value == 0) {
+                caches.values.forEach { it.closeAll() }
+                caches.clear()
+            } else if (value < previous) {
+                caches.values.forEach { it.trim() }
+            }
+        }
+
+    /**
+     * The number of statements which were reused from the cache
+     */
+    @JvmStatic
+    val hits: Long
+        get() = hitCount.get()
+
+    /**
+     * The number of statements which had to be prepared while the cache was enabled
+     */
+    @JvmStatic
+    val misses: Long
+        get() = missCount.get()
+
+    /**
+     * The number of statements which were closed because a connection exceeded the cache size
+     */
+    @JvmStatic
+    val evictions: Long
+        get() = evictionCount.get()
+
+    @JvmStatic
+    fun resetStatistics() {
+        hitCount.set(0)
+        missCount.set(0)
+        evictionCount.set(0)
+    }
+
+    /**
+     * Closes all cached statements of a connection.  This should be called before closing a connection which
+     * was used while the cache was enabled.
+     * @param connection The Connection object
+     */
+    @JvmStatic
+    fun release(connection: Connection) {
+        caches.remove(owner(connection))?.closeAll()
+    }
+
+    // The connection which owns the statements prepared using connection
+    private fun owner(connection: Connection): Connection {
+        var owner = connection
+        while (owner is Delegating) {
+            owner = owner.target
+        }
+        return owner
+    }
+
+    internal val enabled: Boolean
+        get() = limit > 0
+
+    /**
+     * Removes a statement from the cache.  The caller owns the statement until it returns it using `offer`.
+     * @return the cached statement, or null if there is none
+     */
+    internal fun take(connection: Connection, key: Key): PreparedStatement? {
+        purge()
+        val cache = caches[owner(connection)]
+        val ps = cache?.let { synchronized(it) { it.remove(key) } }
+        if (ps != null && !isClosed(ps)) {
+            hitCount.incrementAndGet()
+            return ps
+        }
+        missCount.incrementAndGet()
+        return null
+    }
+
+    /**
+     * Returns a statement to the cache.
+     * @return true if the statement was cached, false if the caller must close it
+     */
+    internal fun offer(connection: Connection, key: Key, ps: PreparedStatement): Boolean {
+        if (!enabled) {
+            return false
+        }
+        try {
+            // do not keep the parameter values reachable from the cache
+            ps.clearParameters()
+        } catch (ignored: SQLException) {
+            return false
+        }
+        val owner = owner(connection)
+        val cache = caches.computeIfAbsent(owner) { ConnectionCache() }
+        synchronized(cache) {
+            // The same statement was used concurrently (e.g. from a row mapper). We keep the most recent one.
+            cache.put(key, ps)?.let { close(it) }
+        }
+        return true
+    }
+
+    private fun purge() {
+        // Cached statements are closed by the driver when their connection is closed, but the cache still references
+        // connections which were closed without calling release.  Checking every connection costs a driver call each,
+        // and is therefore done by at most one thread per PURGE_INTERVAL.
+        val now = System.nanoTime()
+        val next = nextPurge.get()
+        if (now - next >= 0 && nextPurge.compareAndSet(next, now + PURGE_INTERVAL)) {
+            caches.entries.removeIf { (conn, cache) -> isClosed(conn).also { closed -> if (closed) cache.closeAll() } }
+        }
+    }
+
+    private fun isClosed(resource: AutoCloseable): Boolean {
+        return try {
+            when (resource) {
+                is Connection -> resource.isClosed
+                is PreparedStatement -> resource.isClosed
+                else -> false
+            }
+        } catch (ignored: SQLException) {
+            true
+        }
+    }
+}
@@ -12,8 +12,10 @@ dependencies {
     implementation(libs.opencsv)
     antlr(libs.antlr)
     testImplementation(libs.mockk)
+    testImplementation(libs.postgresql)
     testImplementation(libs.mockito.core)
     testImplementation(libs.kotest.assertions.core)
+    testImplementation(libs.kotlinx.coroutines.core)
     testImplementation(libs.assertj.core)
     implementation(libs.junit.jupiter.api)
     testRuntimeOnly(libs.junit.jupiter.engine)
@@ -25,8 +25,18 @@ class Invocations {
 
     @get:JvmName("execute") var execute: Int = 0
 
+    @get:JvmName("addBatch") var addBatch: Int = 0
+
+    @get:JvmName("executeBatch") var executeBatch: Int = 0
+
     @get:JvmName("getList") var getList: Int = 0
 
+    @get:JvmName("stream") var stream: Int = 0
+
+    @get:JvmName("forEach") var forEach: Int = 0
+
+    @get:JvmName("fold") var fold: Int = 0
+
     @get:JvmName("getMap") var getMap: Int = 0
 
     @get:JvmName("getSingle") var getSingle: Int = 0
@@ -16,12 +16,15 @@ import java.util.Properties
 import java.util.concurrent.Executor
 
 class MockConnection : Connection {
+    @Volatile
+    private var autoCommit = true
+
     override fun <T : Any?> unwrap(p0: Class<T>?): T {
         error("Should never be called")
     }
 
     override fun isWrapperFor(p0: Class<*>?): Boolean {
-        error("Should never be called")
+        return false
     }
 
     override fun close() {
@@ -80,10 +83,11 @@ class MockConnection : Connection {
     }
 
     override fun setAutoCommit(p0: Boolean) {
+        autoCommit = p0
     }
 
     override fun getAutoCommit(): Boolean {
-        error("Should never be called")
+        return autoCommit
     }
 
     override fun commit() {
@@ -152,7 +156,11 @@ class MockConnection : Connection {
     }
 
     override fun setSavepoint(): Savepoint {
-        error("Should never be called")
+        return object : Savepoint {
+            override fun getSavepointId(): Int = 0
+
+            override fun getSavepointName(): String = ""
+        }
     }
 
     override fun setSavepoint(p0: String?): Savepoint {
@@ -160,7 +168,6 @@ class MockConnection : Connection {
     }
 
     override fun releaseSavepoint(p0: Savepoint?) {
-        error("Should never be called")
     }
 
     override fun createClob(): Clob {
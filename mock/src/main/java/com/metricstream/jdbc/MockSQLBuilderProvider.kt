@@ -18,6 +18,7 @@ import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.function.BiFunction
 import java.util.function.Supplier
+import java.util.stream.Stream
 import com.metricstream.jdbc.MockResultSet.Companion.THE_ANSWER_TO_THE_ULTIMATE_QUESTION
 import com.metricstream.jdbc.SQLBuilder.Companion.resetDelegate
 import com.metricstream.jdbc.SQLBuilder.Companion.setDelegate
@@ -370,6 +371,20 @@ class MockSQLBuilderProvider @JvmOverloads constructor(
         return getRs()
     }
 
+    override fun addBatch(sqlBuilder: SQLBuilder, connection: Connection) {
+        invocations.addBatch++
+        // The statement does not change between the rows of a batch
+        if (sqlBuilder.batchRows == 0) {
+            validate(sqlBuilder)
+        }
+    }
+
+    override fun executeBatch(sqlBuilder: SQLBuilder, connection: Connection): LongArray {
+        invocations.executeBatch++
+        checkTag(executeTag)
+        return LongArray(sqlBuilder.batchRows) { executeSupplier.get().toLong() }
+    }
+
     override fun <T> getList(
         sqlBuilder: SQLBuilder,
         connection: Connection,
@@ -380,6 +395,92 @@ class MockSQLBuilderProvider @JvmOverloads constructor(
         return getList(getRs(), rowMapper, false)
     }
 
+    override fun <V> getLongKeyedMap(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        keyColumn: Int,
+        rowMapper: SQLBuilder.RowMapper<V?>,
+        withNull: Boolean
+    ): LongKeyedMap<V?> {
+        invocations.getMap++
+        validate(sqlBuilder)
+        return getLongKeyedMap(getRs(), keyColumn, rowMapper, withNull)
+    }
+
+    override fun <V> getIntKeyedMap(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        keyColumn: Int,
+        rowMapper: SQLBuilder.RowMapper<V?>,
+        withNull: Boolean
+    ): IntKeyedMap<V?> {
+        invocations.getMap++
+        validate(sqlBuilder)
+        return getIntKeyedMap(getRs(), keyColumn, rowMapper, withNull)
+    }
+
+    override fun getIntList(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        columnNumber: Int
+    ): IntList {
+        invocations.getList++
+        validate(sqlBuilder)
+        return getIntList(getRs(), columnNumber)
+    }
+
+    override fun getLongList(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        columnNumber: Int
+    ): LongList {
+        invocations.getList++
+        validate(sqlBuilder)
+        return getLongList(getRs(), columnNumber)
+    }
+
+    override fun getDoubleList(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        columnNumber: Int
+    ): DoubleList {
+        invocations.getList++
+        validate(sqlBuilder)
+        return getDoubleList(getRs(), columnNumber)
+    }
+
+    override fun forEach(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        rowConsumer: SQLBuilder.RowConsumer
+    ) {
+        invocations.forEach++
+        validate(sqlBuilder)
+        forEach(getRs(), rowConsumer)
+    }
+
+    override fun <A> fold(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        initial: A,
+        rowFolder: SQLBuilder.RowFolder<A>
+    ): A {
+        invocations.fold++
+        validate(sqlBuilder)
+        return fold(getRs(), initial, rowFolder)
+    }
+
+    override fun <T> stream(
+        sqlBuilder: SQLBuilder,
+        connection: Connection,
+        rowMapper: SQLBuilder.RowMapper<T>,
+        closeConnection: Boolean
+    ): Stream<T> {
+        invocations.stream++
+        validate(sqlBuilder)
+        return if (closeConnection) stream(getRs(), rowMapper, connection) else stream(getRs(), rowMapper)
+    }
+
     override fun <T> getListWithNull(
         sqlBuilder: SQLBuilder,
         connection: Connection,
@@ -444,12 +545,14 @@ class MockSQLBuilderProvider @JvmOverloads constructor(
 
     private fun candidate(stackTraceElement: StackTraceElement): String? {
         val declaringClass = stackTraceElement.className
-        if (declaringClass in internalClasses) {
+        // nested classes (e.g. the lambdas used for cached results) of internal classes are internal as well
+        if (declaringClass in internalClasses || declaringClass.substringBefore('$') in internalClasses) {
             return null
         }
         if (declaringClass.startsWith("org.junit.") ||
             declaringClass.startsWith("jdk.internal.") ||
             declaringClass.startsWith("java.lang.") ||
+            declaringClass.startsWith("java.util.concurrent.") ||
             declaringClass.startsWith("org.codehaus.groovy.")) {
             return null
         }
@@ -511,11 +614,17 @@ class MockSQLBuilderProvider @JvmOverloads constructor(
         private val kotlinLambda = Regex("""\${"$"}lambda-\d+$""")
 
         private val internalClasses = setOf(
+            "com.metricstream.jdbc.BulkInsert",
+            "com.metricstream.jdbc.ConnectionScope",
             "com.metricstream.jdbc.JdbcSQLBuilderProvider",
             "com.metricstream.jdbc.LongString",
+            "com.metricstream.jdbc.QueryGroup",
+            "com.metricstream.jdbc.QueryGroup\$Query",
             "com.metricstream.jdbc.QueryParams",
+            "com.metricstream.jdbc.ResultCache",
             "com.metricstream.jdbc.SQLBuilder",
             "com.metricstream.jdbc.SQLBuilderProvider",
+            "com.metricstream.jdbc.SQLTemplate",
             "com.metricstream.jdbc.Invocations",
             "com.metricstream.jdbc.MockResultSet",
             "com.metricstream.jdbc.MockResultSetMetaData",
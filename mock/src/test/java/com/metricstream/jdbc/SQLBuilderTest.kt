@@ -3,17 +3,38 @@
  */
 package com.metricstream.jdbc
 
+import java.io.Reader
+import java.math.BigDecimal
 import java.sql.Connection
 import java.sql.Date
+import java.sql.PreparedStatement
 import java.sql.ResultSet
+import java.sql.ResultSetMetaData
 import java.sql.SQLException
+import java.sql.SQLTimeoutException
+import java.sql.SQLTransientConnectionException
+import java.sql.Savepoint
 import java.sql.Timestamp
 import java.time.Clock
+import java.time.Duration
 import java.time.Instant
 import java.time.OffsetDateTime
+import java.time.ZoneId
 import java.time.ZoneOffset
+import java.time.ZonedDateTime
 import java.time.temporal.ChronoUnit
+import java.util.Collections
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.stream.Stream
+import ch.qos.logback.classic.Logger
+import ch.qos.logback.classic.spi.ILoggingEvent
+import ch.qos.logback.core.read.ListAppender
 import io.kotest.assertions.throwables.shouldThrow
 import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
 import io.kotest.matchers.optional.shouldBePresent
@@ -23,8 +44,15 @@ import io.kotest.matchers.shouldNotBe
 import io.kotest.matchers.string.shouldContain
 import io.kotest.matchers.string.shouldEndWith
 import io.kotest.matchers.throwable.shouldHaveMessage
+import io.mockk.every
+import io.mockk.mockk
 import io.mockk.spyk
+import io.mockk.verify
+import kotlinx.coroutines.runBlocking
 import org.junit.jupiter.api.Test
+import org.postgresql.PGConnection
+import org.postgresql.copy.CopyManager
+import org.slf4j.LoggerFactory
 import org.junit.jupiter.api.TestInstance
 import org.junit.jupiter.api.extension.ExtendWith
 import com.metricstream.jdbc.MockResultSet.Companion.add
@@ -238,6 +266,18 @@ internal class SQLBuilderTest {
         } shouldHaveMessage "Collection parameters must contain at least one element"
     }
 
+    @Test
+    fun expandSkipsLiteralsAndComments() {
+        SQLBuilder("select '?' from foo where a in (?)", listOf(3, 1, 4)).toString() shouldBe
+            "select '?' from foo where a in (?,?,?); args=[3, 1, 4]"
+        SQLBuilder("select \"a?\" from foo where a = 'it''s?' and b in (?)", listOf(3, 1)).toSQL() shouldBe
+            "select \"a?\" from foo where a = 'it''s?' and b in (?,?)"
+        SQLBuilder("select a from foo -- a in (?)\nwhere a in (?) /* b in (?) */ and b = ?", listOf(3, 1), 4).toString() shouldBe
+            "select a from foo -- a in (?)\nwhere a in (?,?) /* b in (?) */ and b = ?; args=[3, 1, 4]"
+        SQLBuilder("{call foo(?, {d '2026-01-01'}, ?)}", listOf(3, 1), 4).toSQL() shouldBe
+            "{call foo(?,?, {d '2026-01-01'}, ?)}"
+    }
+
     @Test
     internal fun expandRepeatedTest() {
         val args = mutableListOf(3, 1, 4)
@@ -253,6 +293,62 @@ internal class SQLBuilderTest {
         sb.toString() shouldEndWith "a in (?,?,?,?); args=[3, 1, 4, 1]"
     }
 
+    @Test
+    fun collectionBinding_test1() {
+        val padded = SQLBuilder("select a from foo where a in (?)", listOf(3, 1, 4))
+            .withCollectionBinding(SQLBuilder.CollectionBinding.PADDED)
+        padded.toString() shouldBe "select a from foo where a in (?,?,?,?); args=[3, 1, 4, 4]"
+        SQLBuilder(padded).toSQL() shouldBe "select a from foo where a in (?,?,?,?)"
+        val values = SQLBuilder("insert into foo values (?)", listOf(3, 1, 4)).withCollectionBinding(SQLBuilder.CollectionBinding.PADDED)
+        values.toSQL() shouldBe "insert into foo values (?,?,?)"
+
+        val chunked = SQLBuilder("select a from foo where t.a in (?) and b NOT IN ( ? )", List(1001) { it }, List(1001) { it })
+            .withCollectionBinding(SQLBuilder.CollectionBinding.CHUNKED)
+            .toSQL()
+        chunked shouldContain "where (t.a in (?,"
+        chunked shouldContain ",?) or t.a in (?)) and (b not in (?,"
+        chunked shouldEndWith ",?) and b not in (?))"
+        SQLBuilder("select a from foo where a in (?)", listOf(3, 1))
+            .withCollectionBinding(SQLBuilder.CollectionBinding.CHUNKED)
+            .toSQL() shouldBe "select a from foo where a in (?,?)"
+
+        SQLBuilder.setCollectionBinding(SQLBuilder.CollectionBinding.ANY_ARRAY)
+        try {
+            SQLBuilder("select a from foo where a in (?) and b not in (?)", listOf(3, 1), listOf("x")).toSQL() shouldBe
+                "select a from foo where a = any(?) and b <> all(?)"
+            SQLBuilder("select a from foo where a in (?)", listOf(3, "x")).toSQL() shouldBe "select a from foo where a in (?,?)"
+            SQLBuilder("select a from foo where a in (?)", listOf(3, 1))
+                .withCollectionBinding(SQLBuilder.CollectionBinding.TABLE_ARRAY)
+                .toSQL() shouldBe "select a from foo where a in (select column_value from table(?))"
+        } finally {
+            SQLBuilder.setCollectionBinding(SQLBuilder.CollectionBinding.EXPAND)
+        }
+    }
+
+    @Test
+    fun collectionBinding_testArray() = withJdbcProvider { connection, _ ->
+        val ps = mockk<PreparedStatement>(relaxed = true)
+        val array = mockk<java.sql.Array>(relaxed = true)
+        every {
+            connection.prepareStatement("select a from t where a = any(?)", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+        } returns ps
+        every { ps.connection } returns connection
+        every { connection.createArrayOf("integer", arrayOf<Any?>(3, 1)) } returns array
+        val query = { SQLBuilder("select a from t where a in (?)", listOf(SQLBuilder.mask(3), 1)) }
+
+        val sb = query().withCollectionBinding(SQLBuilder.CollectionBinding.ANY_ARRAY)
+        sb.toString() shouldContain "elements=[__masked__:"
+        sb.getList(connection) { rs -> rs.getInt(1) }
+        verify { ps.setArray(1, array) }
+        verify(exactly = 1) { array.free() }
+
+        StatementCache.maxSize = 10
+        query().withCollectionBinding(SQLBuilder.CollectionBinding.ANY_ARRAY).getList(connection) { rs -> rs.getInt(1) }
+        verify(exactly = 2) { array.free() }
+        // the statement was returned to the StatementCache instead of being closed
+        verify(exactly = 1) { ps.close() }
+    }
+
     @Test
     fun reuseResultSetData1() {
         add(
@@ -315,6 +411,47 @@ internal class SQLBuilderTest {
         SQLBuilder("a").wrap("count(", ") as count").toSQL() shouldBe "count(a) as count"
     }
 
+    @Test
+    fun templateTest() {
+        val template = SQLBuilder("select a from \${t} where a in (?) and b = '?' and c = ?")
+            .bind("t", "table1")
+            .withFetchSize(10)
+            .compile()
+        template.sql shouldBe "select a from table1 where a in (?) and b = '?' and c = ?"
+        template.parameterCount shouldBe 2
+        template.builder(listOf(3, 1, 4), 5).toString() shouldBe
+            "select a from table1 where a in (?,?,?) and b = '?' and c = ?; args=[3, 1, 4, 5]"
+        template.builder(listOf(2), 7).append("order by a").toSQL() shouldBe
+            "select a from table1 where a in (?) and b = '?' and c = ? order by a"
+        template.builder(listOf(2), 7).fetchSize shouldBe 10
+        shouldThrow<IllegalStateException> { SQLBuilder("select a from foo where b = ?", 1).compile() }
+    }
+
+    @Test
+    fun templateSettings() {
+        // The collection binding and the result cache settings are part of the template
+        val padded = SQLBuilder("select a from foo where a in (?)")
+            .withCollectionBinding(SQLBuilder.CollectionBinding.PADDED)
+            .compile()
+        padded.builder(listOf(3, 1, 4)).toString() shouldBe "select a from foo where a in (?,?,?,?); args=[3, 1, 4, 4]"
+        val cached = SQLBuilder("select a, b from config where c = ?").cached(Duration.ofMinutes(1), "config").compile()
+        try {
+            add("", "_,3", false)
+            repeat(2) { cached.getList(mockConnection, { rs -> rs.getInt(2) }, 1) shouldBe listOf(3) }
+            MockSQLBuilderProvider.invocations.getList shouldBe 1
+        } finally {
+            ResultCache.clear()
+            ResultCache.resetStatistics()
+        }
+    }
+
+    @Test
+    fun templateGetList() {
+        val template = SQLBuilder("select a from foo where b = ?").compile()
+        add("templateGetList", "A", "3\n1\n4")
+        template.getList(mockConnection, { it.getInt(1) }, 42) shouldBe listOf(3, 1, 4)
+    }
+
     @Test
     fun copyTest1() {
         // A resultset is consumed by a SQLBuilder `getResultSet` (or higher level callers like `getInt`). Therefore,
@@ -352,6 +489,23 @@ internal class SQLBuilderTest {
         rs.getInt(1) shouldBe 43
     }
 
+    @Test
+    fun batchTest() {
+        val sb = SQLBuilder("insert into foo (a, b, c) values (?, ?, ?)", 1, SQLBuilder.batchItem("b"), SQLBuilder.batchItem("c", 0))
+        sb.toString() shouldBe "insert into foo (a, b, c) values (?, ?, ?); args=[1, null, 0]"
+        for (i in 1..3) {
+            sb.set("b", "b$i").set("c", i).addBatch(mockConnection)
+        }
+        sb.toString() shouldBe "insert into foo (a, b, c) values (?, ?, ?); args=[1, b3, 3]"
+        sb.batchRows shouldBe 3
+        sb.executeBatch(mockConnection).toList() shouldBe listOf(42, 42, 42)
+        sb.batchRows shouldBe 0
+        sb.executeBatch(mockConnection).size shouldBe 0
+        shouldThrow<IllegalArgumentException> { sb.set("d", 1) }
+        shouldThrow<IllegalArgumentException> { sb.set("b", listOf(1, 2)) }
+        shouldThrow<IllegalArgumentException> { sb.withBatchSize(0) }
+    }
+
     @Test
     fun unusedMockResultSet() {
         add("unusedMockResultSet:first", "1", false)
@@ -597,6 +751,1032 @@ internal class SQLBuilderTest {
         actual.reduce { a, s -> a + s } shouldBe "anullc"
     }
 
+    @Test
+    fun primitive_test1() {
+        add("primitive_test1", arrayOf(arrayOf(3L), arrayOf(null), arrayOf(4L)))
+        sqlBuilder.getLongArray(mockConnection, 1).toList() shouldBe listOf(3L, 0L, 4L)
+        add("primitive_test1", arrayOf(arrayOf(3), arrayOf(null), arrayOf(4)))
+        sqlBuilder.getIntArray(mockConnection, 1, -1).toList() shouldBe listOf(3, -1, 4)
+        add("primitive_test1", arrayOf(arrayOf(1.5), arrayOf(null)))
+        sqlBuilder.getDoubleArray(mockConnection, 1, Double.NaN)[1].isNaN() shouldBe true
+    }
+
+    @Test
+    fun primitive_test2() {
+        add("primitive_test2", arrayOf(arrayOf(3L), arrayOf(null), arrayOf(4L)))
+        val list = sqlBuilder.getLongList(mockConnection, 1)
+        list.size shouldBe 3
+        list[2] shouldBe 4L
+        list.isNull(0) shouldBe false
+        list.isNull(1) shouldBe true
+        list.nullCount shouldBe 1
+        list.toString() shouldBe "[3, 0, 4]"
+        shouldThrow<IndexOutOfBoundsException> { list[3] }
+        addEmpty("primitive_test2")
+        sqlBuilder.getIntList(mockConnection, 1).isEmpty() shouldBe true
+    }
+
+    @Test
+    fun async_test1() {
+        add("", "_,3\n_,1\n_,4", false)
+        sqlBuilder.getListAsync(mockConnection) { rs -> rs.getInt(2) }.get(10, TimeUnit.SECONDS) shouldBe listOf(3, 1, 4)
+        add("", "_,3", false)
+        runBlocking { sqlBuilder.awaitList(mockConnection) { rs -> rs.getInt(2) } } shouldBe listOf(3)
+        addEmpty("")
+        sqlBuilder.getSingleAsync(mockConnection) { rs -> rs.getInt(2) }.get(10, TimeUnit.SECONDS).shouldNotBePresent()
+        MockSQLBuilderProvider.setExecute("", 2)
+        sqlBuilder.executeAsync(mockConnection).get(10, TimeUnit.SECONDS) shouldBe 2
+    }
+
+    @Test
+    fun async_testCancel() {
+        val tasks = mutableListOf<Runnable>()
+        SQLBuilder.setAsyncExecutor { tasks.add(it) }
+        try {
+            val future = sqlBuilder.getListAsync(mockConnection) { rs -> rs.getInt(2) }
+            future.cancel(true) shouldBe true
+            tasks.single().run()
+            future.isCancelled shouldBe true
+            shouldThrow<CancellationException> { future.join() }
+            MockSQLBuilderProvider.invocations.getList shouldBe 0
+        } finally {
+            SQLBuilder.resetAsyncExecutor()
+        }
+    }
+
+    @Test
+    fun async_testCancelHandle() = withJdbcProvider("select a from t") { connection, statements ->
+        val tasks = mutableListOf<Runnable>()
+        SQLBuilder.setAsyncExecutor { tasks.add(it) }
+        try {
+            val sb = SQLBuilder("select a from t")
+            val cancelled = sb.getListAsync(connection) { rs -> rs.getInt(1) }
+            cancelled.cancel(true)
+            // The handle of the cancelled call must neither affect other calls of the same SQLBuilder object before
+            // the call ran nor replace the handle set for the SQLBuilder object afterward
+            sb.getList(connection) { rs -> rs.getInt(1) } shouldBe emptyList()
+            val handle = CancelHandle()
+            sb.withCancelHandle(handle)
+            tasks.removeFirst().run()
+            shouldThrow<CancellationException> { cancelled.join() }
+            statements.size shouldBe 1
+            handle.cancel()
+            shouldThrow<SQLException> { sb.getList(connection) { rs -> rs.getInt(1) } }.sqlState shouldBe CancelHandle.QUERY_CANCELED
+            sb.withCancelHandle(null)
+
+            // Cancelling the future cancels the running statement
+            val rs = mockk<ResultSet>(relaxed = true)
+            every { rs.next() } returnsMany listOf(true, false)
+            val running = mockk<PreparedStatement>(relaxed = true)
+            every { running.executeQuery() } returns rs
+            every {
+                connection.prepareStatement("select b from t", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+            } returns running
+            lateinit var future: CompletableFuture<List<Boolean>>
+            future = SQLBuilder("select b from t").getListAsync(connection) { future.cancel(true) }
+            tasks.removeFirst().run()
+            future.isCancelled shouldBe true
+            verify { running.cancel() }
+            sb.getList(connection) { it.getInt(1) } shouldBe emptyList()
+        } finally {
+            SQLBuilder.resetAsyncExecutor()
+        }
+    }
+
+    @Test
+    fun timeout_test1() {
+        val sb = SQLBuilder("select a from t").withTimeout(Duration.ofSeconds(5))
+        SQLBuilder(sb).timeout shouldBe Duration.ofSeconds(5)
+        sb.compile().builder().timeout shouldBe Duration.ofSeconds(5)
+        shouldThrow<IllegalArgumentException> { sb.withTimeout(Duration.ofSeconds(-1)) }
+        shouldThrow<IllegalArgumentException> { SQLBuilder.setDefaultTimeout(Duration.ofSeconds(-1)) }
+        SQLBuilder.setDefaultTimeout(Duration.ofMinutes(1))
+        SQLBuilder.setDefaultTimeout(null)
+        val handle = CancelHandle()
+        handle.isCancelled shouldBe false
+        sb.withCancelHandle(handle)
+        handle.cancel()
+        handle.isCancelled shouldBe true
+    }
+
+    @Test
+    fun resultCache_test1() {
+        try {
+            add("", "_,3\n_,4", false)
+            repeat(2) {
+                SQLBuilder("select a, b from config where c = ?", 1)
+                    .cached(Duration.ofMinutes(1), "config")
+                    .getList(mockConnection) { rs -> rs.getInt(2) } shouldBe listOf(3, 4)
+            }
+            MockSQLBuilderProvider.invocations.getList shouldBe 1
+            ResultCache.hits shouldBe 1
+            ResultCache.misses shouldBe 1
+            ResultCache.hitRatio shouldBe 0.5
+            ResultCache.size shouldBe 1
+            SQLBuilder("update config set a = ?", 2).execute(mockConnection)
+            ResultCache.size shouldBe 0
+            add("", "_,5", false)
+            SQLBuilder("select b from config").cached(Duration.ofMinutes(1), "config").getSingle(mockConnection) { rs -> rs.getInt(2) }
+                .shouldBePresent { it shouldBe 5 }
+            ResultCache.size shouldBe 1
+            ResultCache.invalidate("CONFIG")
+            ResultCache.size shouldBe 0
+            shouldThrow<IllegalArgumentException> { sqlBuilder.cached(Duration.ZERO) }
+        } finally {
+            ResultCache.clear()
+            ResultCache.resetStatistics()
+        }
+    }
+
+    @Test
+    fun resultCache_testMapper() {
+        try {
+            // Both row mappers are instances of the same lambda class
+            fun column(index: Int) = SQLBuilder.RowMapper { rs -> rs.getInt(index) }
+            fun query(rowMapper: SQLBuilder.RowMapper<Int>): List<Int> {
+                return SQLBuilder("select a, b from config").cached(Duration.ofMinutes(1), "config").getList(mockConnection, rowMapper)
+            }
+            add("", "2,3", false)
+            add("", "2,3", false)
+            val first = column(1)
+            query(first) shouldBe listOf(2)
+            query(column(2)) shouldBe listOf(3)
+            query(first) shouldBe listOf(2)
+            ResultCache.misses shouldBe 2
+            ResultCache.hits shouldBe 1
+        } finally {
+            ResultCache.clear()
+            ResultCache.resetStatistics()
+        }
+    }
+
+    @Test
+    fun resultCache_testScope() {
+        val other = MockConnection()
+        try {
+            fun query(connection: Connection, scope: Any? = null): List<Int> {
+                add("", "_,3", false)
+                return SQLBuilder("select a, b from config").cached(Duration.ofMinutes(1), "config").withCacheScope(scope)
+                    .getList(connection) { rs -> rs.getInt(2) }
+            }
+            // Sessions do not share results unless they use the same explicit scope
+            query(mockConnection) shouldBe listOf(3)
+            query(other) shouldBe listOf(3)
+            ResultCache.misses shouldBe 2
+            query(mockConnection, "main")
+            query(other, "main")
+            ResultCache.misses shouldBe 3
+            ResultCache.hits shouldBe 1
+            ResultCache.clear()
+
+            // A write which runs concurrently with a query prevents caching its result, also while the cache is empty
+            add("", "_,3", false)
+            SQLBuilder("select a, b from config").cached(Duration.ofMinutes(1), "config").getList(mockConnection) { rs ->
+                SQLBuilder("update config set a = ?", 2).execute(other)
+                rs.getInt(2)
+            }
+            ResultCache.size shouldBe 0
+            // but a write to another table does not
+            add("", "_,3", false)
+            SQLBuilder("select a, b from config").cached(Duration.ofMinutes(1), "config").getList(mockConnection) { rs ->
+                SQLBuilder("update audit set a = ?", 2).execute(other)
+                rs.getInt(2)
+            }
+            ResultCache.size shouldBe 1
+            ResultCache.clear()
+
+            // Results cached by other sessions during a transaction are invalidated by its commit
+            SQLBuilder.inTransaction { connection ->
+                SQLBuilder("update config set a = ?", 2).execute(connection)
+                query(other)
+                ResultCache.size shouldBe 1
+            }
+            ResultCache.size shouldBe 0
+        } finally {
+            ResultCache.clear()
+            ResultCache.resetStatistics()
+        }
+    }
+
+    /**
+     * Runs block with the JDBC provider and a mocked connection which prepares a new mocked statement whenever one
+     * of sqls is prepared.  These statements are passed to block in the order in which they were prepared.
+     */
+    private fun withJdbcProvider(vararg sqls: String, block: (Connection, List<PreparedStatement>) -> Unit) {
+        val connection = mockk<Connection>(relaxed = true)
+        val statements = mutableListOf<PreparedStatement>()
+        for (sql in sqls) {
+            every {
+                connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+            } answers { mockk<PreparedStatement>(relaxed = true).also { statements.add(it) } }
+        }
+        SQLBuilder.resetDelegate()
+        try {
+            block(connection, statements)
+        } finally {
+            StatementCache.maxSize = 0
+            StatementCache.resetStatistics()
+            MockSQLBuilderProvider.enable()
+        }
+    }
+
+    private val cacheStatements = arrayOf("select a from t", "select b from t", "select c from t")
+
+    @Test
+    fun timeout_testJdbc() = withJdbcProvider("select a from t") { connection, statements ->
+        val sb = SQLBuilder("select a from t")
+        try {
+            sb.withTimeout(Duration.ofMillis(1500)).getList(connection) { rs -> rs.getInt(1) }
+            verify { statements.last().queryTimeout = 2 }
+            sb.withTimeout(Duration.ofSeconds(Long.MAX_VALUE)).getList(connection) { rs -> rs.getInt(1) }
+            verify { statements.last().queryTimeout = Int.MAX_VALUE }
+            SQLBuilder.setDefaultTimeout(Duration.ofSeconds(30))
+            sb.withTimeout(null).getList(connection) { rs -> rs.getInt(1) }
+            verify { statements.last().queryTimeout = 30 }
+            sb.withTimeout(Duration.ZERO).getList(connection) { rs -> rs.getInt(1) }
+            verify { statements.last().queryTimeout = 0 }
+            statements.size shouldBe 4
+        } finally {
+            SQLBuilder.setDefaultTimeout(null)
+        }
+    }
+
+    @Test
+    fun adaptiveFetchSize_test1() = withJdbcProvider { connection, _ ->
+        var rows = 0
+        val fetchSizes = mutableListOf<Int>()
+        every { connection.prepareStatement(any(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY) } answers {
+            val rs = mockk<ResultSet>(relaxed = true)
+            var row = 0
+            every { rs.next() } answers { ++row <= rows }
+            val metaData = mockk<ResultSetMetaData>()
+            every { metaData.columnCount } returns 2
+            every { rs.metaData } returns metaData
+            val ps = mockk<PreparedStatement>(relaxed = true)
+            // The default fetch size of the driver
+            every { ps.fetchSize } returns 10
+            every { ps.fetchSize = any() } answers { fetchSizes.add(firstArg()) }
+            every { ps.executeQuery() } returns rs
+            ps
+        }
+        // Returns the fetch size set for the statement, or null if the driver default was used
+        fun query(sb: SQLBuilder): Int? {
+            fetchSizes.clear()
+            sb.getList(connection) { rs -> rs.getInt(1) }
+            return fetchSizes.lastOrNull()
+        }
+        val sb = SQLBuilder("select a, b from adaptive")
+        try {
+            rows = 100
+            query(sb) shouldBe null
+            AdaptiveFetchSize.maxBytes = 1_000_000
+            // the first execution learns the size of the result
+            query(sb) shouldBe null
+            query(sb) shouldBe 101
+            // growing results are adopted immediately, shrinking results only slowly
+            rows = 1000
+            query(sb) shouldBe 101
+            query(sb) shouldBe 1001
+            rows = 0
+            query(sb) shouldBe 1001
+            query(sb) shouldBe 751
+            // the memory bound: 2 columns of 32 bytes per row
+            AdaptiveFetchSize.maxBytes = 200L * 2 * AdaptiveFetchSize.DEFAULT_BYTES_PER_COLUMN
+            query(sb) shouldBe 200
+            // withFetchSize always wins and does not contribute to the learned size
+            rows = 3000
+            query(SQLBuilder(sb).withFetchSize(7)) shouldBe 7
+            query(sb) shouldBe 200
+            AdaptiveFetchSize.maxFetchSize = 150
+            query(sb) shouldBe 150
+
+            // small results never go below the driver default or the configured floor
+            val small = SQLBuilder("select c, d from adaptive")
+            rows = 3
+            query(small) shouldBe null
+            query(small) shouldBe null
+            AdaptiveFetchSize.minFetchSize = 50
+            query(small) shouldBe 50
+            shouldThrow<IllegalArgumentException> { AdaptiveFetchSize.minFetchSize = -1 }
+        } finally {
+            AdaptiveFetchSize.maxBytes = 0
+            AdaptiveFetchSize.maxFetchSize = AdaptiveFetchSize.DEFAULT_MAX_FETCH_SIZE
+            AdaptiveFetchSize.minFetchSize = 0
+        }
+    }
+
+    @Test
+    fun singleFlight_test1() = withJdbcProvider { connection, _ ->
+        val executions = AtomicInteger()
+        val other = mockk<Connection>(relaxed = true)
+        for (session in listOf(connection, other)) {
+            every {
+                session.prepareStatement("select a from flight", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+            } answers {
+                executions.incrementAndGet()
+                val rs = mockk<ResultSet>(relaxed = true)
+                every { rs.next() } returnsMany listOf(true, false)
+                every { rs.getInt(1) } returns 7
+                val ps = mockk<PreparedStatement>(relaxed = true)
+                every { ps.executeQuery() } returns rs
+                ps
+            }
+        }
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val mapper = SQLBuilder.RowMapper { rs ->
+            started.countDown()
+            release.await()
+            rs.getInt(1)
+        }
+        fun query(): SQLBuilder = SQLBuilder("select a from flight").withSingleFlight()
+        // A separate thread per query, because the leaders block their threads
+        fun <T> async(query: () -> T): CompletableFuture<T> = CompletableFuture.supplyAsync(query) { Thread(it).start() }
+        fun awaitFollowers(count: Int) {
+            while (SingleFlight.waiting < count) {
+                Thread.sleep(1)
+            }
+        }
+
+        // A follower shares the result of the leader
+        var leader = async { query().getList(connection, mapper) }
+        started.await()
+        val follower = async { query().getList(connection, mapper) }
+        awaitFollowers(1)
+        release.countDown()
+        leader.join() shouldBe listOf(7)
+        follower.join() shouldBe listOf(7)
+        executions.get() shouldBe 1
+
+        // A follower stops waiting after its own timeout or when its own handle is cancelled
+        val blocking = CountDownLatch(1)
+        val blocked = CountDownLatch(1)
+        val blockingMapper = SQLBuilder.RowMapper { rs ->
+            blocking.countDown()
+            blocked.await()
+            rs.getInt(1)
+        }
+        leader = async { query().getList(connection, blockingMapper) }
+        blocking.await()
+        shouldThrow<SQLTimeoutException> { query().withTimeout(Duration.ofMillis(100)).getList(connection, blockingMapper) }
+        val handle = CancelHandle()
+        val cancelled = async { query().withCancelHandle(handle).getList(connection, blockingMapper) }
+        awaitFollowers(1)
+        handle.cancel()
+        (shouldThrow<CompletionException> { cancelled.join() }.cause as SQLException).sqlState shouldBe CancelHandle.QUERY_CANCELED
+        blocked.countDown()
+        leader.join() shouldBe listOf(7)
+        executions.get() shouldBe 2
+
+        // The cancellation of the leader is not passed on to its followers, which execute the query again
+        val leaderHandle = CancelHandle()
+        val leading = CountDownLatch(1)
+        val restarted = CountDownLatch(1)
+        val cancelling = SQLBuilder.RowMapper { rs ->
+            leading.countDown()
+            restarted.await()
+            if (leaderHandle.isCancelled && executions.get() == 3) {
+                throw SQLException("cancelled", CancelHandle.QUERY_CANCELED)
+            }
+            rs.getInt(1)
+        }
+        leader = async { query().withCancelHandle(leaderHandle).getList(connection, cancelling) }
+        leading.await()
+        val retrying = async { query().getList(connection, cancelling) }
+        awaitFollowers(1)
+        leaderHandle.cancel()
+        restarted.countDown()
+        (shouldThrow<CompletionException> { leader.join() }.cause as SQLException).sqlState shouldBe CancelHandle.QUERY_CANCELED
+        retrying.join() shouldBe listOf(7)
+        executions.get() shouldBe 4
+
+        // Executions using different database sessions don't share their result
+        val entered = CountDownLatch(1)
+        val gate = CountDownLatch(1)
+        val gated = SQLBuilder.RowMapper { rs ->
+            if (entered.count > 0) {
+                entered.countDown()
+                gate.await()
+            }
+            rs.getInt(1)
+        }
+        leader = async { query().getList(connection, gated) }
+        entered.await()
+        query().withTimeout(Duration.ofSeconds(5)).getList(other, gated) shouldBe listOf(7)
+        gate.countDown()
+        leader.join() shouldBe listOf(7)
+        executions.get() shouldBe 6
+    }
+
+    @Test
+    fun batch_testJdbc() = withJdbcProvider("insert into foo (a, b) values (?, ?)") { connection, statements ->
+        val sb = SQLBuilder("insert into foo (a, b) values (?, ?)", 1, SQLBuilder.batchItem("b")).withBatchSize(2)
+        sb.set("b", "b1").addBatch(connection)
+        val ps = statements.single()
+        every { ps.executeBatch() } returns intArrayOf(1, 1)
+        sb.set("b", "b2").addBatch(connection)
+        sb.addBatch(connection)
+        sb.set("b", "b3").addBatch(connection)
+        // Constant parameters are only bound for the first row, and batch items only when they changed
+        verify(exactly = 1) { ps.setObject(1, 1) }
+        verify(exactly = 1) { ps.setObject(2, "b2") }
+        verify(exactly = 4) { ps.addBatch() }
+        verify(exactly = 2) { ps.executeBatch() }
+        sb.executeBatch(connection).toList() shouldBe listOf(1, 1, 1, 1)
+        verify(exactly = 2) { ps.executeBatch() }
+        verify { ps.close() }
+        statements.size shouldBe 1
+    }
+
+    @Test
+    fun statementCache_test1() = withJdbcProvider(*cacheStatements) { connection, statements ->
+        StatementCache.maxSize = 2
+        SQLBuilder("select a from t").getInt(connection, 1, 0) shouldBe 0
+        SQLBuilder("select a from t").getInt(connection, 1, 0) shouldBe 0
+        statements.size shouldBe 1
+        StatementCache.misses shouldBe 1
+        StatementCache.hits shouldBe 1
+        verify(exactly = 0) { statements[0].close() }
+
+        // "select a" is the least recently used statement when "select c" is cached
+        SQLBuilder("select b from t").getInt(connection, 1, 0)
+        SQLBuilder("select c from t").getInt(connection, 1, 0)
+        statements.size shouldBe 3
+        StatementCache.evictions shouldBe 1
+        verify { statements[0].close() }
+        SQLBuilder("select b from t").getInt(connection, 1, 0)
+        statements.size shouldBe 3
+
+        StatementCache.release(connection)
+        verify { statements[1].close() }
+        verify { statements[2].close() }
+        SQLBuilder("select b from t").getInt(connection, 1, 0)
+        statements.size shouldBe 4
+    }
+
+    @Test
+    fun statementCache_testDisabled() = withJdbcProvider(*cacheStatements) { connection, statements ->
+        StatementCache.maxSize = 2
+        SQLBuilder("select a from t").getInt(connection, 1, 0)
+        StatementCache.maxSize = 0
+        verify { statements[0].close() }
+        SQLBuilder("select a from t").getInt(connection, 1, 0)
+        statements.size shouldBe 2
+        verify { statements[1].close() }
+        StatementCache.hits shouldBe 0
+        shouldThrow<IllegalArgumentException> { StatementCache.maxSize = -1 }
+    }
+
+    @Test
+    fun statementCache_testResultSet() = withJdbcProvider(*cacheStatements) { connection, statements ->
+        StatementCache.maxSize = 2
+        // The statements of a returned ResultSet are closed together with it and must therefore never be cached
+        SQLBuilder("select a from t").getResultSet(connection).close()
+        SQLBuilder("select a from t").getResultSet(connection).close()
+        statements.size shouldBe 2
+        SQLBuilder("select a from t").getList(connection) { it.getInt(1) }
+        statements.size shouldBe 3
+        StatementCache.hits shouldBe 0
+        StatementCache.misses shouldBe 1
+    }
+
+    @Test
+    fun statementCache_testKeys() = withJdbcProvider { connection, _ ->
+        val prepared = mutableListOf<PreparedStatement>()
+        every { connection.prepareStatement("insert into t values (?)", arrayOf("id")) } answers {
+            mockk<PreparedStatement>(relaxed = true).also { prepared.add(it) }
+        }
+        StatementCache.maxSize = 2
+        // The statement is returned to the cache when its generated keys are closed, and is in use until then
+        SQLBuilder("insert into t values (?)", 1).execute(connection, "id").close()
+        SQLBuilder("insert into t values (?)", 2).execute(connection, "id").use {
+            SQLBuilder("insert into t values (?)", 3).execute(connection, "id").close()
+        }
+        prepared.size shouldBe 2
+        StatementCache.hits shouldBe 1
+        verify(exactly = 0) { prepared[0].close() }
+        verify { prepared[1].close() }
+
+        // Batches with generated keys use the same statement
+        val sb = SQLBuilder("insert into t values (?)", SQLBuilder.batchItem("a")).withGeneratedKeys(listOf("id")) { }
+        repeat(2) {
+            sb.set("a", it).addBatch(connection)
+            sb.executeBatch(connection)
+        }
+        prepared.size shouldBe 2
+        StatementCache.hits shouldBe 3
+        verify(exactly = 0) { prepared[0].close() }
+    }
+
+    @Test
+    fun statementCache_testResize() = withJdbcProvider(*cacheStatements) { connection, statements ->
+        StatementCache.maxSize = 3
+        cacheStatements.forEach { SQLBuilder(it).getInt(connection, 1, 0) }
+        // Reducing the size closes the least recently used statements
+        StatementCache.maxSize = 1
+        verify { statements[0].close() }
+        verify { statements[1].close() }
+        verify(exactly = 0) { statements[2].close() }
+        StatementCache.evictions shouldBe 2
+        SQLBuilder("select c from t").getInt(connection, 1, 0)
+        statements.size shouldBe 3
+    }
+
+    @Test
+    fun pool_test1() {
+        val physical = mutableListOf<Connection>()
+        val factory = ConnectionProvider { mockk<Connection>(relaxed = true).also { physical.add(it) } }
+        val pool = PooledConnectionProvider(factory, maxSize = 1, borrowTimeout = Duration.ofMillis(10))
+        pool.use {
+            val first = pool.getConnection()
+            shouldThrow<SQLTransientConnectionException> { pool.getConnection() }
+            first.close()
+            first.isClosed shouldBe true
+            pool.idleConnections shouldBe 1
+            // every checkout gets its own Connection object for the same physical connection
+            pool.getConnection().use { it shouldNotBe first }
+            pool.totalConnections shouldBe 1
+            pool.created shouldBe 1
+            pool.borrowed shouldBe 2
+            pool.timeouts shouldBe 1
+        }
+        pool.totalConnections shouldBe 0
+        verify { physical.single().close() }
+        shouldThrow<SQLException> { pool.getConnection() }
+    }
+
+    @Test
+    fun pool_testStatementCache() = withJdbcProvider { _, _ ->
+        val factory = ConnectionProvider {
+            mockk<Connection>(relaxed = true).also { connection ->
+                every { connection.prepareStatement(any(), any<Int>(), any<Int>()) } answers { mockk<PreparedStatement>(relaxed = true) }
+            }
+        }
+        StatementCache.maxSize = 10
+        PooledConnectionProvider(factory, maxSize = 2).use { pool ->
+            val first = pool.getConnection()
+            val second = pool.getConnection()
+            SQLBuilder("select a from t").getList(first) { rs -> rs.getInt(1) }
+            first.close()
+            // the statements of the idle connection are kept while another connection caches its statements
+            SQLBuilder("select b from t").getList(second) { rs -> rs.getInt(1) }
+            pool.getConnection().use { SQLBuilder("select a from t").getList(it) { rs -> rs.getInt(1) } }
+            second.close()
+            StatementCache.hits shouldBe 1
+            StatementCache.misses shouldBe 2
+        }
+    }
+
+    @Test
+    fun pool_testDoubleClose() {
+        val pool = PooledConnectionProvider({ mockk<Connection>(relaxed = true) }, maxSize = 1, borrowTimeout = Duration.ofMillis(10))
+        pool.use {
+            val stale = pool.getConnection()
+            stale.close()
+            val current = pool.getConnection()
+            // closing the stale checkout again neither returns the current checkout nor can it be used anymore
+            stale.close()
+            pool.activeConnections shouldBe 1
+            shouldThrow<SQLTransientConnectionException> { pool.getConnection() }
+            shouldThrow<SQLException> { stale.createStatement() }
+            stale.isClosed shouldBe true
+            current.isClosed shouldBe false
+            current.close()
+            pool.activeConnections shouldBe 0
+            pool.idleConnections shouldBe 1
+        }
+    }
+
+    @Test
+    fun pool_testStatement() {
+        val physical = mockk<Connection>(relaxed = true)
+        PooledConnectionProvider({ physical }, maxSize = 1).use { pool ->
+            val connection = pool.getConnection()
+            val statement = connection.prepareStatement("select a from t")
+            statement.connection shouldBe connection
+            statement.executeQuery().statement shouldBe statement
+            // Closing the connection of a statement or of its ResultSet returns the connection to the pool
+            statement.executeQuery().statement.connection.close()
+            pool.activeConnections shouldBe 0
+            pool.idleConnections shouldBe 1
+            verify(exactly = 0) { physical.close() }
+            // Statements reused by a later checkout return that checkout
+            pool.getConnection().use { statement.connection shouldBe it }
+        }
+    }
+
+    @Test
+    fun pool_testIdleTimeout() {
+        val physical = mutableListOf<Connection>()
+        val factory = ConnectionProvider { mockk<Connection>(relaxed = true).also { physical.add(it) } }
+        PooledConnectionProvider(factory, minSize = 1, idleTimeout = Duration.ofMillis(20)).use { pool ->
+            val first = pool.getConnection()
+            val second = pool.getConnection()
+            first.close()
+            second.close()
+            pool.idleConnections shouldBe 2
+            Thread.sleep(50)
+            // Borrowing closes the least recently used idle connections which exceeded the timeout, down to minSize
+            pool.getConnection().use {
+                verify { physical[0].close() }
+                verify(exactly = 0) { physical[1].close() }
+                pool.totalConnections shouldBe 1
+                pool.created shouldBe 2
+            }
+        }
+    }
+
+    @Test
+    fun pool_testLeak() {
+        val pool = PooledConnectionProvider({ mockk<Connection>(relaxed = true) }, maxSize = 3)
+        pool.leakThreshold = Duration.ofMillis(20)
+        pool.use {
+            val leaked = pool.getConnection()
+            pool.getConnection().close()
+            pool.leaks shouldBe 0
+            Thread.sleep(50)
+            // the check runs when a connection is borrowed, and every leak is reported once
+            pool.getConnection().close()
+            pool.leaks shouldBe 1
+            pool.getConnection().close()
+            pool.leaks shouldBe 1
+            leaked.close()
+            shouldThrow<IllegalArgumentException> { pool.leakThreshold = Duration.ofMillis(-1) }
+        }
+    }
+
+    @Test
+    fun bulkInsert_test1() {
+        val connection = mockk<Connection>(relaxed = true)
+        val rows = generateSequence(0) { it + 1 }.take(1001).map { listOf(it, "name$it") }
+        SQLBuilder.bulkInsert(connection, "person", listOf("id", "name"), rows.iterator()) shouldBe 1001
+        MockSQLBuilderProvider.invocations.execute shouldBe 2
+        shouldThrow<IllegalArgumentException> {
+            SQLBuilder.bulkInsert(connection, "person", listOf("id", "name"), listOf(listOf(1)).iterator())
+        }
+        shouldThrow<IllegalArgumentException> {
+            SQLBuilder.bulkInsert(connection, "person", emptyList(), emptyList<List<Any?>>().iterator())
+        }
+    }
+
+    @Test
+    fun bulkInsert_testCopy() {
+        val copied = StringBuilder()
+        val copyManager = mockk<CopyManager>()
+        every { copyManager.copyIn(any(), any<Reader>()) } answers {
+            copied.append(secondArg<Reader>().readText())
+            5L
+        }
+        val pgConnection = mockk<PGConnection>()
+        every { pgConnection.copyAPI } returns copyManager
+        val connection = mockk<Connection>(relaxed = true)
+        every { connection.isWrapperFor(PGConnection::class.java) } returns true
+        every { connection.unwrap(PGConnection::class.java) } returns pgConnection
+
+        val timestamp = Timestamp.valueOf("2026-01-02 03:04:05")
+        val rows = listOf(
+            listOf(1, "plain", null),
+            listOf(2, "", byteArrayOf(0, 15, -1)),
+            listOf(3, "say \"hi\",\nbye", BigDecimal("1E+3")),
+            listOf(4, SQLBuilder.mask("secret"), ZonedDateTime.of(2026, 1, 2, 3, 4, 5, 0, ZoneId.of("Europe/Berlin"))),
+            listOf(5, java.util.Date(timestamp.time), timestamp),
+        )
+        SQLBuilder.bulkInsert(connection, "person", listOf("id", "name", "data"), rows.iterator()) shouldBe 5
+        copied.toString() shouldBe """
+            |"1","plain",
+            |"2","","\x000fff"
+            |"3","say ""hi"",
+            |bye","1000"
+            |"4","secret","2026-01-02T03:04:05+01:00"
+            |"5","2026-01-02 03:04:05.0","2026-01-02 03:04:05.0"
+            |""".trimMargin()
+
+        shouldThrow<IllegalArgumentException> {
+            SQLBuilder.bulkInsert(connection, "person", listOf("id", "data"), listOf(listOf(1, listOf(2, 3))).iterator())
+        }
+    }
+
+    @Test
+    fun routing_test1() {
+        val primary = mockk<Connection>(relaxed = true)
+        val replicas = List(2) { mockk<Connection>(relaxed = true) }
+        val router = RoutingConnectionProvider({ primary }, replicas.map { replica -> ConnectionProvider { replica } })
+        router.getConnection(ConnectionProvider.Intent.READ) shouldBe replicas[0]
+        router.getConnection(ConnectionProvider.Intent.READ) shouldBe replicas[1]
+        router.getConnection(ConnectionProvider.Intent.READ) shouldBe replicas[0]
+        router.getConnection(ConnectionProvider.Intent.WRITE) shouldBe primary
+        router.getConnection(ConnectionProvider.Intent.READ_AFTER_WRITE) shouldBe primary
+        router.getConnection() shouldBe primary
+        router.replicaConnections shouldBe 3
+
+        val down = ConnectionProvider { throw SQLException("down") }
+        val leastLoaded = RoutingConnectionProvider({ primary }, listOf(down, down), RoutingConnectionProvider.Strategy.LEAST_LOADED)
+        leastLoaded.getConnection(ConnectionProvider.Intent.READ) shouldBe primary
+        leastLoaded.fallbacks shouldBe 1
+    }
+
+    @Test
+    fun routing_testBackoff() {
+        val primary = mockk<Connection>(relaxed = true)
+        val replica = mockk<Connection>(relaxed = true)
+        val attempts = AtomicInteger()
+        var available = false
+        val flaky = ConnectionProvider {
+            attempts.incrementAndGet()
+            if (available) replica else throw SQLException("down")
+        }
+        val router = RoutingConnectionProvider({ primary }, listOf(flaky), backoff = Duration.ofMillis(100))
+        router.getConnection(ConnectionProvider.Intent.READ) shouldBe primary
+        // the failed replica is skipped during the backoff
+        available = true
+        router.getConnection(ConnectionProvider.Intent.READ) shouldBe primary
+        attempts.get() shouldBe 1
+        router.fallbacks shouldBe 2
+        Thread.sleep(150)
+        router.getConnection(ConnectionProvider.Intent.READ) shouldBe replica
+        attempts.get() shouldBe 2
+        shouldThrow<IllegalArgumentException> { RoutingConnectionProvider({ primary }, listOf(flaky), backoff = Duration.ofMillis(-1)) }
+    }
+
+    @Test
+    fun routing_testAsyncWrite() {
+        val intents = Collections.synchronizedList(mutableListOf<ConnectionProvider.Intent>())
+        SQLBuilder.setDelegate(object : SQLBuilderProvider by MockSQLBuilderProvider() {
+            override val connectionProvider = object : ConnectionProvider {
+                override fun getConnection() = getConnection(ConnectionProvider.Intent.WRITE)
+
+                override fun getConnection(intent: ConnectionProvider.Intent): Connection {
+                    intents.add(intent)
+                    return mockk<Connection>(relaxed = true)
+                }
+            }
+
+            override fun getConnection() = getConnection(ConnectionProvider.Intent.WRITE)
+
+            override fun getConnection(intent: ConnectionProvider.Intent) = super<SQLBuilderProvider>.getConnection(intent)
+        })
+        // A new thread, which did not write anything before
+        fun <T> onNewThread(action: () -> T): T = CompletableFuture.supplyAsync(action) { Thread(it).start() }.join()
+        try {
+            add("", "_,7", false)
+            onNewThread { SQLBuilder("select a, b from t").getList { rs -> rs.getInt(2) } }
+            intents shouldBe listOf(ConnectionProvider.Intent.READ)
+
+            // The write of an asynchronous call counts as a write of the calling thread
+            intents.clear()
+            add("", "_,7", false)
+            onNewThread {
+                SQLBuilder("update t set a = 1").executeAsync().join()
+                SQLBuilder("select a, b from t").getList { rs -> rs.getInt(2) }
+            }
+            intents shouldBe listOf(ConnectionProvider.Intent.WRITE, ConnectionProvider.Intent.READ_AFTER_WRITE)
+        } finally {
+            MockSQLBuilderProvider.enable()
+        }
+    }
+
+    @Test
+    fun transaction_test1() {
+        val result = SQLBuilder.inTransaction { connection ->
+            connection.autoCommit shouldBe false
+            SQLBuilder.getConnection() shouldBe connection
+            SQLBuilder("update t set a = 1").execute() shouldBe 42
+            SQLBuilder.withConnection { it shouldBe connection }
+            shouldThrow<SQLException> { SQLBuilder.inTransaction<Int> { throw SQLException("boom") } }
+            SQLBuilder.inTransaction { 7 }
+        }
+        result shouldBe 7
+        val connection = SQLBuilder.getConnection()
+        connection.autoCommit shouldBe true
+        SQLBuilder.withConnection { it } shouldNotBe connection
+    }
+
+    @Test
+    fun transaction_testSavepoint() {
+        val connection = mockk<Connection>(relaxed = true)
+        val savepoint = mockk<Savepoint>(relaxed = true)
+        every { connection.autoCommit } returns true
+        every { connection.setSavepoint() } returns savepoint
+        SQLBuilder.setDelegate(object : SQLBuilderProvider by MockSQLBuilderProvider() {
+            override val connectionProvider = ConnectionProvider { connection }
+
+            override fun getConnection() = getConnection(ConnectionProvider.Intent.WRITE)
+
+            override fun getConnection(intent: ConnectionProvider.Intent) = super<SQLBuilderProvider>.getConnection(intent)
+        })
+        try {
+            // A failing nested scope only rolls back to its savepoint
+            SQLBuilder.inTransaction {
+                shouldThrow<SQLException> { SQLBuilder.inTransaction<Int> { throw SQLException("boom") } }
+                7
+            } shouldBe 7
+            verify { connection.rollback(savepoint) }
+            verify(exactly = 0) { connection.rollback() }
+            verify(exactly = 1) { connection.commit() }
+            verify { connection.autoCommit = true }
+
+            // A failure to restore auto-commit does not hide the exception which rolled back the transaction
+            every { connection.autoCommit = true } throws SQLException("closed")
+            val e = shouldThrow<SQLException> { SQLBuilder.inTransaction<Int> { throw SQLException("boom") } }
+            e shouldHaveMessage "boom"
+            e.suppressed.single() shouldHaveMessage "closed"
+            verify(exactly = 1) { connection.rollback() }
+        } finally {
+            MockSQLBuilderProvider.enable()
+        }
+    }
+
+    @Test
+    fun transaction_testAsync() {
+        val used = Collections.synchronizedList(mutableListOf<Connection>())
+        SQLBuilder.setDelegate(object : SQLBuilderProvider by MockSQLBuilderProvider() {
+            override val connectionProvider = ConnectionProvider { mockk<Connection>(relaxed = true) }
+
+            override fun getConnection() = getConnection(ConnectionProvider.Intent.WRITE)
+
+            override fun getConnection(intent: ConnectionProvider.Intent) = super<SQLBuilderProvider>.getConnection(intent)
+
+            override fun execute(sqlBuilder: SQLBuilder, connection: Connection): Int {
+                used.add(connection)
+                return 1
+            }
+        })
+        try {
+            SQLBuilder.inTransaction { connection ->
+                SQLBuilder("update t set a = 1").executeAsync().join() shouldBe 1
+                runBlocking(connectionContext()) { SQLBuilder("update t set a = 2").awaitExecute() } shouldBe 1
+                used shouldBe listOf(connection, connection)
+            }
+            SQLBuilder("update t set a = 3").executeAsync().join() shouldBe 1
+            used.last() shouldNotBe used.first()
+        } finally {
+            MockSQLBuilderProvider.enable()
+        }
+    }
+
+    @Test
+    fun queryGroup_testIntent() {
+        val intents = Collections.synchronizedList(mutableListOf<ConnectionProvider.Intent>())
+        SQLBuilder.setDelegate(object : SQLBuilderProvider by MockSQLBuilderProvider() {
+            override val connectionProvider = object : ConnectionProvider {
+                override fun getConnection() = getConnection(ConnectionProvider.Intent.WRITE)
+
+                override fun getConnection(intent: ConnectionProvider.Intent): Connection {
+                    intents.add(intent)
+                    return mockk<Connection>(relaxed = true)
+                }
+            }
+
+            override fun getConnection() = getConnection(ConnectionProvider.Intent.WRITE)
+
+            override fun getConnection(intent: ConnectionProvider.Intent) = super<SQLBuilderProvider>.getConnection(intent)
+        })
+        try {
+            // A group of reads borrows its connections for reads
+            val reads = SQLBuilder.parallel(2)
+            repeat(2) { reads.add(SQLBuilder("select a from t"), ConnectionProvider.Intent.READ) { _, _ -> 1 } }
+            reads.run()
+            intents.size shouldBe 2
+            intents.count { it == ConnectionProvider.Intent.WRITE } shouldBe 0
+
+            // A single action which may write makes all connections of the group connections for writes
+            intents.clear()
+            val mixed = SQLBuilder.parallel(2)
+            mixed.add(SQLBuilder("select a from t"), ConnectionProvider.Intent.READ) { _, _ -> 1 }
+            mixed.add(SQLBuilder("update t set a = 1")) { sb, connection -> sb.execute(connection) }
+            mixed.run()
+            intents shouldBe List(2) { ConnectionProvider.Intent.WRITE }
+        } finally {
+            MockSQLBuilderProvider.enable()
+        }
+    }
+
+    @Test
+    fun queryGroup_test1() {
+        repeat(3) { add("", "_,7", false) }
+        val group = SQLBuilder.parallel(2)
+        val queries = List(3) { group.getList(SQLBuilder("select a, b from t where c = ?", it)) { rs -> rs.getInt(2) } }
+        val count = group.add(SQLBuilder("update t set a = 1")) { sb, connection -> sb.execute(connection) }
+        group.run()
+        queries.map { it.get() } shouldBe List(3) { listOf(7) }
+        count.get() shouldBe 42
+        shouldThrow<IllegalStateException> { group.run() }
+    }
+
+    @Test
+    fun queryGroup_testFailure() {
+        val group = SQLBuilder.parallel(1)
+        val failing = group.add(sqlBuilder) { _, _ -> throw SQLException("boom") }
+        val skipped = group.getList(sqlBuilder) { rs -> rs.getInt(1) }
+        shouldThrow<SQLException> { group.run() } shouldHaveMessage "boom"
+        shouldThrow<IllegalStateException> { failing.get() }
+        shouldThrow<IllegalStateException> { skipped.get() }
+        MockSQLBuilderProvider.invocations.getList shouldBe 0
+    }
+
+    @Test
+    fun queryGroup_testDeadline() {
+        // The query of the group follows a blocked single-flight leader and therefore only ends when it is cancelled
+        add("", "_,7", false)
+        val blocking = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val mapper = SQLBuilder.RowMapper { rs ->
+            blocking.countDown()
+            release.await()
+            rs.getInt(2)
+        }
+        fun query(): SQLBuilder = SQLBuilder("select a, b from t").withSingleFlight()
+        val leader = CompletableFuture.supplyAsync({ query().getList(mapper) }) { Thread(it).start() }
+        blocking.await()
+        val group = SQLBuilder.parallel(1).withDeadline(Duration.ofMillis(100))
+        val cancelled = group.add(query()) { sb, _ -> sb.getList(mapper) }
+        val skipped = group.getList(sqlBuilder) { rs -> rs.getInt(1) }
+        shouldThrow<SQLTimeoutException> { group.run() }
+        // run only returns after the cancelled query gave back its connection
+        SingleFlight.waiting shouldBe 0
+        shouldThrow<IllegalStateException> { cancelled.get() }
+        shouldThrow<IllegalStateException> { skipped.get() }
+        release.countDown()
+        leader.join() shouldBe listOf(7)
+        MockSQLBuilderProvider.invocations.getList shouldBe 1
+    }
+
+    @Test
+    fun forEach_test1() {
+        add("forEach_test1", "A", "3\n1\n4")
+        var sum = 0
+        sqlBuilder.forEach(mockConnection) { rs -> sum += rs.getInt(1) }
+        sum shouldBe 8
+    }
+
+    @Test
+    fun fold_test1() {
+        add("fold_test1", "A", "3\n1\n4")
+        sqlBuilder.fold(mockConnection, 0L) { sum, rs -> sum + rs.getLong(1) } shouldBe 8L
+        addEmpty("fold_test1")
+        sqlBuilder.fold(mockConnection, -1) { _, rs -> rs.getInt(1) } shouldBe -1
+    }
+
+    @Test
+    fun wrappedResultSetTest() {
+        val rs = create("wrappedResultSetTest", "A", "3\n1")
+        val wrapped = SQLBuilder.wrapConnection(rs)
+        wrapped.next() shouldBe true
+        wrapped.getInt(1) shouldBe 3
+        wrapped.isClosed shouldBe false
+        wrapped.close()
+        rs.isClosed shouldBe true
+        wrapped.isClosed shouldBe true
+        // closing again is a no-op
+        wrapped.close()
+    }
+
+    @Test
+    fun stream_test1() {
+        val rs = create("stream_test1", "A", "3\n1\n4")
+        addResultSet(rs)
+        sqlBuilder.stream(mockConnection) { it.getInt(1) }.toList() shouldBe listOf(3, 1, 4)
+        // fully consumed streams close their resources
+        rs.isClosed shouldBe true
+    }
+
+    @Test
+    fun stream_test2() {
+        val rs = create("stream_test2", "A", "3\n1\n4")
+        addResultSet(rs)
+        sqlBuilder.stream(mockConnection) { it.getInt(1) }.use { stream ->
+            stream.findFirst().get() shouldBe 3
+            rs.isClosed shouldBe false
+        }
+        rs.isClosed shouldBe true
+        add("stream_test2", "A", "5\n9\n2")
+        sqlBuilder.useSequence(mockConnection, { it.getInt(1) }) { sequence -> sequence.filter { it > 4 }.toList() } shouldBe listOf(5, 9)
+    }
+
+    @Test
+    fun stream_testConnection() {
+        // The borrowed connection is closed when the stream can't be created, whatever the failure
+        val connection = mockk<Connection>(relaxed = true)
+        SQLBuilder.setDelegate(object : SQLBuilderProvider by MockSQLBuilderProvider() {
+            override fun getConnection() = getConnection(ConnectionProvider.Intent.WRITE)
+
+            override fun getConnection(intent: ConnectionProvider.Intent) = connection
+
+            override fun <T> stream(
+                sqlBuilder: SQLBuilder,
+                connection: Connection,
+                rowMapper: SQLBuilder.RowMapper<T>,
+                closeConnection: Boolean
+            ): Stream<T> = throw IllegalStateException("boom")
+        })
+        try {
+            shouldThrow<IllegalStateException> { sqlBuilder.stream { it.getInt(1) } }
+            verify { connection.close() }
+        } finally {
+            MockSQLBuilderProvider.enable()
+        }
+    }
+
     @Test
     fun map_test1() {
         // when query returns 3 rows
@@ -642,6 +1822,166 @@ internal class SQLBuilderTest {
         exp.message shouldContain "unsupported"
     }
 
+    @Test
+    fun keyedMap_test1() {
+        add("keyedMap_test1", arrayOf(arrayOf(3L, "Three"), arrayOf(0L, "Zero"), arrayOf(4L, "Four"), arrayOf(5L, null)))
+        val m = sqlBuilder.getLongKeyedMap(mockConnection, 1) { rs -> rs.getString(2) }
+        m.size shouldBe 3
+        m[3] shouldBe "Three"
+        m[0] shouldBe "Zero"
+        m[1] shouldBe null
+        m.containsKey(5) shouldBe false
+        m.keys().sorted() shouldBe listOf(0L, 3L, 4L)
+        add("keyedMap_test1", arrayOf(arrayOf(3, "Three"), arrayOf(5, null)))
+        val n = sqlBuilder.getIntKeyedMap(mockConnection, 1, true) { rs -> rs.getString(2) }
+        n.size shouldBe 2
+        n.containsKey(5) shouldBe true
+        n[5] shouldBe null
+    }
+
+    @Test
+    fun keyedMap_testDuplicateKeys() {
+        add("keyedMap_testDuplicateKeys", "3,Three\n1,One\n3,Four", false)
+        shouldThrow<IllegalStateException> {
+            sqlBuilder.getLongKeyedMap(mockConnection, 1) { rs -> rs.getString(2) }
+        }.message shouldBe "Duplicate map key '3' is unsupported"
+        add("keyedMap_testDuplicateKeys", arrayOf(arrayOf(3, "Three"), arrayOf(null, "Zero")))
+        shouldThrow<IllegalStateException> {
+            sqlBuilder.getIntKeyedMap(mockConnection, 1) { rs -> rs.getString(2) }
+        }.message shouldBe "Null as map key is unsupported"
+    }
+
+    @Test
+    fun keyedMap_testGrowth() {
+        val m = LongKeyedMap<Long>(0)
+        for (key in -1000L..1000L) {
+            m.putIfAbsent(key * 4096, key) shouldBe true
+        }
+        m.size shouldBe 2001
+        m.putIfAbsent(4096, 0) shouldBe false
+        m.put(4096, 7) shouldBe 1L
+        (-1000L..1000L).all { m.containsKey(it * 4096) } shouldBe true
+        m[4096] shouldBe 7L
+    }
+
+    @Test
+    fun fingerprint_test1() {
+        val f1 = QueryFingerprint.of("SELECT a FROM t WHERE x IN (?,?,?) AND y = 'it''s' -- comment")
+        val f2 = QueryFingerprint.of("/* report */ select a\n  from t where x in (?) and y = 'z'")
+        f1.normalizedSql shouldBe "select a from t where x in (?) and y = ?"
+        f1 shouldBe f2
+        f1.id shouldBe f2.id
+        f1.id.length shouldBe 16
+        QueryFingerprint.of("select \"Name\" from t1 where id = 42 and rate > 0.5").normalizedSql shouldBe
+            "select \"Name\" from t1 where id = ? and rate > ?"
+        (QueryFingerprint.of("select b from t") == f1) shouldBe false
+    }
+
+    @Test
+    fun instrumentation_test1() = withJdbcProvider { connection, _ ->
+        val events = mutableListOf<QueryEvent>()
+        val listener = QueryListener { events.add(it) }
+        val rs = mockk<ResultSet>(relaxed = true)
+        every { rs.next() } returnsMany listOf(true, true, false)
+        val select = mockk<PreparedStatement>(relaxed = true)
+        every { select.executeQuery() } returns rs
+        every { connection.prepareStatement("select a from t", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY) } returns select
+        val update = mockk<PreparedStatement>(relaxed = true)
+        every { update.executeUpdate() } throws SQLException("boom")
+        every { connection.prepareStatement("update t set a = ?", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY) } returns update
+        val insert = mockk<PreparedStatement>(relaxed = true)
+        every { insert.setObject(1, "x") } throws IllegalStateException("bind")
+        every { connection.prepareStatement("insert into t (a) values (?)", arrayOf("id")) } returns insert
+
+        QueryInstrumentation.addListener(listener)
+        try {
+            StatementCache.maxSize = 2
+            SQLBuilder("select a from t").getList(connection) { it.getInt(1) }.size shouldBe 2
+            SQLBuilder("select a from t").getList(connection) { it.getInt(1) }.size shouldBe 0
+            shouldThrow<SQLException> { SQLBuilder("update t set a = ?", 1).execute(connection) }
+            shouldThrow<IllegalStateException> { SQLBuilder("insert into t (a) values (?)", "x").execute(connection, "id") }
+        } finally {
+            QueryInstrumentation.removeListener(listener)
+        }
+        SQLBuilder("select a from t").getList(connection) { it.getInt(1) }
+        events.size shouldBe 4
+
+        val first = events[0]
+        first.sql shouldBe "select a from t"
+        first.fingerprint shouldBe QueryFingerprint.of("select a from t")
+        first.rows shouldBe 2L
+        first.cached shouldBe false
+        first.failed shouldBe false
+        (first.prepareNanos >= 0 && first.bindNanos >= 0 && first.executeNanos >= 0 && first.fetchNanos >= 0) shouldBe true
+        first.totalNanos shouldBe first.prepareNanos + first.bindNanos + first.executeNanos + first.fetchNanos
+        events[1].cached shouldBe true
+        events[2].exception?.message shouldBe "boom"
+        events[2].rows shouldBe -1L
+        (events[3].exception is IllegalStateException) shouldBe true
+        verify { insert.close() }
+    }
+
+    @Test
+    fun slowQueryLog_test1() {
+        val log = SlowQueryLog(Duration.ofMillis(500))
+        log.sampleRate shouldBe 1.0
+        log.maxPerSecond shouldBe SlowQueryLog.DEFAULT_MAX_PER_SECOND
+        log.maskArguments shouldBe true
+        shouldThrow<IllegalArgumentException> { SlowQueryLog(Duration.ofMillis(-1)) }
+        shouldThrow<IllegalArgumentException> { SlowQueryLog(Duration.ZERO, 1.5) }
+        shouldThrow<IllegalArgumentException> { SlowQueryLog(Duration.ZERO, 0.5, 0) }
+    }
+
+    /**
+     * Runs block with the JDBC provider and log as the only QueryListener, and returns the messages which log logged
+     */
+    private fun slowQueries(log: SlowQueryLog, block: (Connection) -> Unit): List<String> {
+        val appender = ListAppender<ILoggingEvent>().apply { start() }
+        val logger = LoggerFactory.getLogger(SlowQueryLog::class.java) as Logger
+        logger.addAppender(appender)
+        QueryInstrumentation.addListener(log)
+        try {
+            withJdbcProvider { connection, _ -> block(connection) }
+        } finally {
+            QueryInstrumentation.removeListener(log)
+            logger.detachAppender(appender)
+        }
+        return appender.list.map { it.formattedMessage }
+    }
+
+    @Test
+    fun slowQueryLog_test2() {
+        val query = SQLBuilder("select a from t where b = ?", "secret")
+        slowQueries(SlowQueryLog(Duration.ofHours(1))) { query.getList(it) { rs -> rs.getInt(1) } }.size shouldBe 0
+        slowQueries(SlowQueryLog(Duration.ZERO, sampleRate = 0.0)) { query.getList(it) { rs -> rs.getInt(1) } }.size shouldBe 0
+
+        val masked = slowQueries(SlowQueryLog(Duration.ZERO)) { query.getList(it) { rs -> rs.getInt(1) } }.single()
+        masked shouldContain "Slow query ${QueryFingerprint.of(query.toSQL())} took "
+        masked shouldContain ", rows=0"
+        masked shouldEndWith ": select a from t where b = ?; args=[${SQLBuilder.mask("secret")}]"
+        // The call site is the first frame outside of SQLBuilder
+        masked shouldContain ", at "
+        masked.contains(", at com.metricstream.jdbc.") shouldBe false
+
+        val plain = slowQueries(SlowQueryLog(Duration.ZERO, maskArguments = false)) { query.getList(it) { rs -> rs.getInt(1) } }
+        plain.single() shouldEndWith "; args=[secret]"
+    }
+
+    @Test
+    fun slowQueryLog_testRateLimit() {
+        val now = AtomicLong(TimeUnit.SECONDS.toNanos(7))
+        val messages = slowQueries(SlowQueryLog(Duration.ZERO, maxPerSecond = 2, ticker = now::get)) { connection ->
+            repeat(5) { SQLBuilder("select a from t").getList(connection) { it.getInt(1) } }
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999))
+            SQLBuilder("select a from t").getList(connection) { it.getInt(1) }
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1))
+            SQLBuilder("select a from t").getList(connection) { it.getInt(1) }
+        }
+        messages.size shouldBe 3
+        messages[1].contains("not logged before") shouldBe false
+        messages[2] shouldContain ", 4 slow queries not logged before: select a from t"
+    }
+
     @Test
     fun map_test3() {
         // when query returns 3 rows
@@ -871,6 +2211,14 @@ internal class SQLBuilderTest {
         shouldThrow<IllegalArgumentException> { sb.bind("b+", "BCOL") }
     }
 
+    @Test
+    fun adjacentAndUnboundPlaceholders() {
+        val sb = SQLBuilder("select \${a}\${b}, :{c}, \${ a }, \${} from :{t} where x > ?", 5)
+        sb.bind("a", "ACOL").bind("b", listOf("BCOL", "CCOL")).bind("t", "table1")
+        sb.toString() shouldBe "select ACOLBCOL, CCOL, :{c}, \${ a }, \${} from table1 where x > ?; args=[5]"
+        sb.toString() shouldBe "select ACOLBCOL, CCOL, :{c}, \${ a }, \${} from table1 where x > ?; args=[5]"
+    }
+
     @Test
     fun repeatedPlaceholder() {
         shouldThrow<IllegalArgumentException> { SQLBuilder("").bind("a", "first").bind("a", "second") }
@@ -1049,6 +2397,30 @@ internal class SQLBuilderTest {
             "select name from user where secret=? and public=?; args=[__masked__:982c0381c279d139fd221fce974916e7, ok]"
     }
 
+    @Test
+    fun maskHash() {
+        val secret = SQLBuilder.mask("oops!")
+        secret.toString() shouldBe "__masked__:982c0381c279d139fd221fce974916e7"
+        try {
+            SQLBuilder.setMaskHash(SQLBuilder.MaskHash.salted("pepper"))
+            secret.toString() shouldBe "__masked__:b2d7c7e79560d8c0a9b1af12c83f5aa302f6b8e39f895826c0c6f31ce7835540"
+            SQLBuilder.setMaskHash(SQLBuilder.MaskHash.murmur3(42))
+            val murmur = secret.toString()
+            murmur.length shouldBe "__masked__:".length + 32
+            secret.toString() shouldBe murmur
+            SQLBuilder.mask("oops!").toString() shouldBe murmur
+            SQLBuilder.setMaskHash(SQLBuilder.MaskHash.murmur3(43))
+            (secret.toString() == murmur) shouldBe false
+            val calls = AtomicInteger()
+            SQLBuilder.setMaskHash { data -> calls.incrementAndGet(); data.reversed() }
+            repeat(3) { secret.toString() shouldBe "__masked__:!spoo" }
+            calls.get() shouldBe 1
+        } finally {
+            SQLBuilder.resetMaskHash()
+        }
+        secret.toString() shouldBe "__masked__:982c0381c279d139fd221fce974916e7"
+    }
+
     private fun masked(value: Any): String {
         return SQLBuilder("?", SQLBuilder.mask(value)).toString()
     }
@@ -10,4 +10,4 @@ nmcpSettings {
     }
 }
 
-include("core", "mock", "docs", "examples:postgres", "examples:oracle")
+include("core", "mock", "docs", "benchmarks", "examples:postgres", "examples:oracle")